@@ -21,10 +21,18 @@ package keepalive;
 import freenet.client.HighLevelSimpleClientImpl;
 import freenet.keys.FreenetURI;
 import freenet.pluginmanager.PluginRespirator;
+import keepalive.model.SiteStatistics;
+import keepalive.repository.BlockHistoryRepository;
 import keepalive.repository.BlockRepository;
 import keepalive.repository.DB;
+import keepalive.repository.MetadataRepository;
+import keepalive.repository.StatisticsRepository;
+import keepalive.service.net.BlockBufferPool;
 import keepalive.service.net.Client;
+import keepalive.service.net.JobExecutor;
+import keepalive.service.reinserter.HealExecutor;
 import keepalive.service.reinserter.Reinserter;
+import keepalive.service.reinserter.ReinserterScheduler;
 import keepalive.web.AdminPage;
 import pluginbase.PluginBase;
 
@@ -32,13 +40,25 @@ import java.io.File;
 import java.net.MalformedURLException;
 import java.sql.Connection;
 import java.sql.Statement;
-import java.util.concurrent.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class Plugin extends PluginBase {
 
     private static final String version = "0.3.3.12-JB";
 
-    private Thread reinserterRunner;
+    // histories of blocks not seen for this time are removed
+    private static final int BLOCK_HISTORY_DAYS = 90;
+
+    // longest wait for the reinserter of a removed site
+    private static final long REMOVE_WAIT = TimeUnit.SECONDS.toMillis(30);
+
+    private ReinserterScheduler scheduler;
+    private List<Reinserter> stoppingReinserters = new ArrayList<>(); // of the last scheduler
+    private JobExecutor jobExecutor;
+    private BlockBufferPool blockBufferPool;
+    private HealExecutor healExecutor;
     private long propSavingTimestamp;
     private HighLevelSimpleClientImpl hlsc;
     private boolean stackTrace = "true".equals(getProp("stackTrace"));
@@ -82,14 +102,39 @@ public class Plugin extends PluginBase {
                         "data VARBINARY(32768) not null, " +
                         "last_access TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
                 statement.executeUpdate(sql);
+                sql = "CREATE TABLE IF NOT EXISTS BlockHistory (" +
+                        "routing_key VARCHAR(64) PRIMARY KEY, " +
+                        "last_available TIMESTAMP, " +
+                        "last_inserted TIMESTAMP, " +
+                        "failures INT DEFAULT 0 NOT NULL, " +
+                        "last_activity TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
+                statement.executeUpdate(sql);
+                sql = "ALTER TABLE BlockHistory ADD COLUMN IF NOT EXISTS " +
+                        "last_activity TIMESTAMP DEFAULT CURRENT_TIMESTAMP";
+                statement.executeUpdate(sql);
+                sql = "CREATE TABLE IF NOT EXISTS BlockSite (" +
+                        "routing_key VARCHAR(64) NOT NULL, " +
+                        "site_id INT NOT NULL, " +
+                        "PRIMARY KEY (routing_key, site_id))";
+                statement.executeUpdate(sql);
+                sql = "CREATE TABLE IF NOT EXISTS Metadata (" +
+                        "cache_key VARCHAR(1024) PRIMARY KEY, " +
+                        "name VARCHAR(1024), " +
+                        "data BLOB NOT NULL, " +
+                        "last_access TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
+                statement.executeUpdate(sql);
             } catch (Exception e) {
                 log(e.getMessage(), e);
             }
+            BlockHistoryRepository.getInstance(this).deleteOlderThan(TimeUnit.DAYS.toMillis(BLOCK_HISTORY_DAYS));
+            MetadataRepository.getInstance(this).deleteOlderThan(TimeUnit.DAYS.toMillis(BLOCK_HISTORY_DAYS));
 
             // initial values
             if (getProp("loglevel") == null) setIntProp("loglevel", 1);
             if (getProp("ids") == null) setProp("ids", "");
             if (getProp("power") == null) setIntProp("power", 6);
+            if (getProp("power_min") == null) setIntProp("power_min", 2);
+            if (getProp("adaptive_power") == null) setIntProp("adaptive_power", 1);
             if (getProp("active") == null) setIntProp("active", -1);
             if (getProp("splitfile_tolerance") == null) setIntProp("splitfile_tolerance", 66);
             if (getProp("splitfile_test_size") == null) setIntProp("splitfile_test_size", 18);
@@ -97,9 +142,26 @@ public class Plugin extends PluginBase {
             if (getProp("log_utc") == null) setIntProp("log_utc", 1);
             if (getIntProp("log_utc") == 1) setTimezoneUTC();
             if (getProp("single_url_timeslot") == null) setIntProp("single_url_timeslot", 4);
+            if (getProp("parallel_sites") == null) setIntProp("parallel_sites", 0);
+            if (getProp("block_freshness") == null) setIntProp("block_freshness", 24);
+            if (getProp("memory_budget") == null) setIntProp("memory_budget", 0);
+            if (getProp("early_decode") == null) setIntProp("early_decode", 1);
+            if (getProp("heal_margin") == null) setIntProp("heal_margin", 10);
             if (getProp("stackTrace") == null) setProp("stackTrace", "false");
             saveProp();
 
+            // reusable buffers for block data, spilled to disk above the memory budget
+            blockBufferPool = new BlockBufferPool((int) Math.min(1024,
+                    Runtime.getRuntime().maxMemory() / 16 / BlockBufferPool.BLOCK_SIZE),
+                    getBlockBufferBudget(), new File(getPluginDirectory() + "spill.tmp"));
+
+            // shared pool for healing segments of all sites
+            healExecutor = new HealExecutor();
+
+            // shared executor for fetches and inserts of all sites
+            jobExecutor = new JobExecutor(getIntProp("power"));
+            configureJobExecutor();
+
             // build page and menu
             addPage(new AdminPage(this, pluginContext.node.clientCore.formPassword));
             addMenuItem("Documentation", "Go to the documentation site",
@@ -116,61 +178,25 @@ public class Plugin extends PluginBase {
         }
     }
 
+    // the scheduler is called without holding the plugin lock, it saves props while holding its own
     public void startReinserter(final int siteId) {
         try {
 
-            // stop previous reinserter
-            stopReinserter();
-
             setIntProp("active", siteId);
             saveProp();
 
-            // start this one
+            // the running scheduler goes on with this site next
+            ReinserterScheduler current = getScheduler();
+            if (current != null && current.isAlive()) {
+                current.startSite(siteId);
+                return;
+            }
+            List<Reinserter> stopping = current != null ? current.getStoppingReinserters() : stoppingReinserters;
+
+            // start the scheduler with this one
             synchronized (this) {
-                final Plugin plugin = this;
-                reinserterRunner = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (int id = siteId; ; ) {
-                            if (Thread.currentThread().isInterrupted()) {
-                                return;
-                            }
-
-                            setIntProp("active", id);
-                            saveProp();
-
-                            CountDownLatch latch = new CountDownLatch(1);
-                            Reinserter reinserter = new Reinserter(plugin, id, latch);
-                            reinserter.start();
-                            try {
-                                if (!latch.await(getIntProp("single_url_timeslot"), TimeUnit.HOURS)) {
-                                    reinserter.interrupt();
-                                    log("Terminated reinserter " + id + " by timeout");
-                                }
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                                reinserter.interrupt();
-                                return;
-                            }
-
-                            // get next siteId
-                            int[] ids = getIds();
-                            int i = 0;
-                            for (; i < ids.length; i++) {
-                                if (id == ids[i]) {
-                                    break;
-                                }
-                            }
-                            if (i < ids.length - 1) {
-                                id = ids[i + 1];
-                            } else {
-                                id = ids[0];
-                            }
-                        }
-                    }
-                });
-                reinserterRunner.setName("KeepAlive Reinserter Runner");
-                reinserterRunner.start();
+                scheduler = new ReinserterScheduler(this, siteId, stopping);
+                scheduler.start();
             }
 
         } catch (Exception e) {
@@ -178,11 +204,19 @@ public class Plugin extends PluginBase {
         }
     }
 
-    public synchronized void stopReinserter() {
+    public void stopReinserter() {
         try {
 
-            if (reinserterRunner != null) {
-                reinserterRunner.interrupt();
+            ReinserterScheduler previous;
+            synchronized (this) {
+                previous = scheduler;
+                scheduler = null;
+            }
+            if (previous != null) {
+                List<Reinserter> stopping = previous.shutdown();
+                synchronized (this) {
+                    stoppingReinserters = stopping;
+                }
                 setIntProp("active", -1);
                 saveProp();
             }
@@ -192,6 +226,15 @@ public class Plugin extends PluginBase {
         }
     }
 
+    public boolean isReinserterActive(int siteId) {
+        ReinserterScheduler current = getScheduler();
+        return current != null && current.isRunning(siteId);
+    }
+
+    public synchronized ReinserterScheduler getScheduler() {
+        return scheduler;
+    }
+
     public int[] getIds() {
         try {
 
@@ -213,36 +256,16 @@ public class Plugin extends PluginBase {
         }
     }
 
+    /**
+     * @return available blocks, failed blocks and available segments of the running pass
+     */
     public int[] getSuccessValues(int siteId) {
         try {
 
-            // available blocks
-            int success = 0;
-            int failed = 0;
-            String[] successMap = getProp("success_" + siteId).split(",");
-            if (successMap.length >= 2) {
-                for (int i = 0; i < successMap.length; i += 2) {
-                    success += Integer.parseInt(successMap[i]);
-                    failed += Integer.parseInt(successMap[i + 1]);
-                }
-            }
-
-            // available segments
-            int availableSegments = 0;
-            String successSegments = getProp("success_segments_" + siteId);
-            int lastTriedSegment = getIntProp("segment_" + siteId);
-            if (successSegments != null) {
-                if (lastTriedSegment >= successSegments.length()) {
-                    log("Plugin.getSuccessValues(): List of success_segments too short for siteId " +
-                            siteId + "! " + successSegments.length() + " vs " + lastTriedSegment + 1, 0);
-                }
-
-                for (int i = 0; i <= lastTriedSegment && i < successSegments.length(); i++) {
-                    if (successSegments.charAt(i) == '1') {
-                        availableSegments++;
-                    }
-                }
-            }
+            SiteStatistics statistics = StatisticsRepository.getInstance(this).find(siteId);
+            int success = statistics.getSuccess();
+            int failed = statistics.getFailed();
+            int availableSegments = statistics.getAvailableSegments(getIntProp("segment_" + siteId));
 
             return new int[]{success, failed, availableSegments};
 
@@ -257,20 +280,50 @@ public class Plugin extends PluginBase {
     }
 
     public String getBlockListFilename(int siteId) {
+        return "keys" + siteId + ".bin";
+    }
+
+    // block list of older versions, converted when the site is started
+    public String getTextBlockListFilename(int siteId) {
         return "keys" + siteId + ".txt";
     }
 
+    public String getJournalFilename(int siteId) {
+        return "journal" + siteId + ".bin";
+    }
+
     @Override
     public void saveProp() {
-        if (propSavingTimestamp < System.currentTimeMillis() - 10 * 1000) {
-            super.saveProp();
+        saveProp(false);
+    }
+
+    /**
+     * @param force write now, otherwise at most once every 10 seconds
+     * @return the properties were written
+     */
+    public synchronized boolean saveProp(boolean force) {
+        if (force || propSavingTimestamp < System.currentTimeMillis() - 10 * 1000) {
             propSavingTimestamp = System.currentTimeMillis();
+            return storeProp();
         }
+        return false;
     }
 
     @Override
     public void terminate() {
         stopReinserter();
+        if (jobExecutor != null) {
+            jobExecutor.shutdown();
+        }
+        if (healExecutor != null) {
+            healExecutor.shutdown();
+        }
+        BlockHistoryRepository.getInstance(this).flush();
+        StatisticsRepository.close();
+        if (blockBufferPool != null) {
+            blockBufferPool.close();
+        }
+        saveProp(true); // the throttled save of the plugin base may skip the last changes
         super.terminate();
         log("plugin terminated", 0);
     }
@@ -279,6 +332,34 @@ public class Plugin extends PluginBase {
         return hlsc;
     }
 
+    public JobExecutor getJobExecutor() {
+        return jobExecutor;
+    }
+
+    public HealExecutor getHealExecutor() {
+        return healExecutor;
+    }
+
+    public BlockBufferPool getBlockBufferPool() {
+        return blockBufferPool;
+    }
+
+    /**
+     * @return number of block buffers allowed in memory (prop memory_budget in MB, 0 = an eighth of the heap)
+     */
+    public int getBlockBufferBudget() {
+        long budget = getIntProp("memory_budget") * 1024L * 1024L;
+        if (budget <= 0) {
+            budget = Runtime.getRuntime().maxMemory() / 8;
+        }
+        // at least two segments (of 256 blocks) at once
+        return (int) Math.max(2 * 256, budget / BlockBufferPool.BLOCK_SIZE);
+    }
+
+    public void configureJobExecutor() {
+        jobExecutor.configure(getIntProp("adaptive_power") == 1, getIntProp("power_min"), getIntProp("power"));
+    }
+
     public synchronized boolean isDuplicate(String uri) {
         try {
 
@@ -295,12 +376,34 @@ public class Plugin extends PluginBase {
     }
 
     public void removeUri(int id) {
-        // stop reinserter
-        if (id == getIntProp("active")) {
-            stopReinserter();
+        // stop reinserter and wait until it does not use the files of the site anymore
+        ReinserterScheduler scheduler = getScheduler();
+        if (scheduler != null) {
+            scheduler.stopSite(id);
+            try {
+                if (!scheduler.awaitFinished(id, REMOVE_WAIT)) {
+                    log("Plugin.removeUri(): reinserter " + id + " did not stop in time.", 1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            List<Reinserter> stopping;
+            synchronized (this) {
+                stopping = new ArrayList<>(stoppingReinserters);
+            }
+            for (Reinserter reinserter : stopping) {
+                if (reinserter.getSiteId() == id && reinserter != Thread.currentThread()) {
+                    try {
+                        reinserter.join(REMOVE_WAIT);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
         }
 
-        // remove log and key files
+        // remove log, key and journal files
         File file = new File(getPluginDirectory() + getLogFilename(id));
         if (file.exists()) {
             if (!file.delete()) {
@@ -308,11 +411,24 @@ public class Plugin extends PluginBase {
             }
         }
         file = new File(getPluginDirectory() + getBlockListFilename(id));
+        if (file.exists()) {
+            if (!file.delete()) {
+                file.deleteOnExit(); // may still be mapped until the next garbage collection
+                log("Plugin.removeUri(): remove key files was not successful.", 1);
+            }
+        }
+        file = new File(getPluginDirectory() + getTextBlockListFilename(id));
         if (file.exists()) {
             if (!file.delete()) {
                 log("Plugin.removeUri(): remove key files was not successful.", 1);
             }
         }
+        file = new File(getPluginDirectory() + getJournalFilename(id));
+        if (file.exists()) {
+            if (!file.delete()) {
+                log("Plugin.removeUri(): remove journal file was not successful.", 1);
+            }
+        }
 
         // remove top block from db
         try {
@@ -323,10 +439,18 @@ public class Plugin extends PluginBase {
         }
 
         // remove items
+        BlockHistoryRepository.getInstance(this).deleteSiteBlocks(id);
+        StatisticsRepository.getInstance(this).delete(id);
+        ReinserterScheduler current = getScheduler();
+        if (current != null) {
+            current.forgetSite(id); // the id may be given to a new site
+        }
         removeProp("uri_" + id);
         removeProp("blocks_" + id);
         removeProp("success_" + id);
         removeProp("success_segments_" + id);
+        removeProp("availability_" + id);
+        removeProp("availability_prior_" + id);
         removeProp("segment_" + id);
         removeProp("history_" + id);
         String ids = ("," + getProp("ids")).replaceAll("," + id + ",", ",");
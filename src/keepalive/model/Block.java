@@ -19,26 +19,49 @@
 package keepalive.model;
 
 import freenet.keys.FreenetURI;
-import freenet.support.io.ArrayBucket;
+import freenet.support.api.RandomAccessBucket;
 
+/**
+ * Block of a segment in work. The key is kept packed (see {@link BlockTable}),
+ * the uri is created only when a request is issued.
+ */
 public class Block {
 
-    private int id;
-    private int segmentId;
-    private FreenetURI uri;
-    private ArrayBucket bucket;
-    private boolean dataBlock;
-    private boolean fetchDone; // done but not necessarily successful
-    private boolean fetchSuccessful;
-    private boolean insertDone; // done but not necessarily successful
-    private boolean insertSuccessful;
-    private String resultLog;
-
-    public Block(FreenetURI uri, int segmentId, int id, boolean isDataBlock) {
+    private static final byte DATA_BLOCK = 1;
+    private static final byte FETCH_DONE = 1 << 1; // done but not necessarily successful
+    private static final byte FETCH_SUCCESSFUL = 1 << 2;
+    private static final byte INSERT_DONE = 1 << 3; // done but not necessarily successful
+    private static final byte INSERT_SUCCESSFUL = 1 << 4;
+    private static final byte NOT_HEALABLE = 1 << 5; // the healed data does not match the key
+
+    private final int id;
+    private final int segmentId;
+    private final int fileId;
+    private final byte[] key;
+    private final String docName;
+    private byte status;
+    private RandomAccessBucket bucket;
+    private boolean released; // the segment is done, later buckets are freed at once
+    private BlockResult result;
+    private String resultDetail;
+    private BlockHistory history;
+
+    public Block(FreenetURI uri, int segmentId, int id, boolean isDataBlock, int fileId) {
+        this(BlockTable.packKey(uri), uri.getDocName(), segmentId, id, isDataBlock, fileId);
+    }
+
+    /**
+     * @param key packed key (routing key, crypto key, extra)
+     */
+    public Block(byte[] key, String docName, int segmentId, int id, boolean isDataBlock, int fileId) {
         this.id = id;
         this.segmentId = segmentId;
-        this.uri = uri;
-        dataBlock = isDataBlock;
+        this.fileId = fileId;
+        this.key = key;
+        this.docName = docName;
+        if (isDataBlock) {
+            status = DATA_BLOCK;
+        }
     }
 
     public int getId() {
@@ -49,63 +72,135 @@ public class Block {
         return segmentId;
     }
 
+    // all segments of a splitfile share the file id
+    public int getFileId() {
+        return fileId;
+    }
+
+    /**
+     * @return new uri of the block
+     */
     public FreenetURI getUri() {
-        return uri;
+        return BlockTable.unpackUri(key, 0, docName);
     }
 
-    public ArrayBucket getBucket() {
+    public byte[] getRoutingKey() {
+        return BlockTable.unpackRoutingKey(key, 0);
+    }
+
+    public synchronized RandomAccessBucket getBucket() {
         return bucket;
     }
 
-    public void setBucket(ArrayBucket bucket) {
-        this.bucket = bucket;
+    public void setBucket(RandomAccessBucket bucket) {
+        synchronized (this) {
+            if (!released) {
+                this.bucket = bucket;
+                return;
+            }
+        }
+        // a late fetch of a segment that was already released
+        if (bucket != null) {
+            bucket.free();
+        }
+    }
+
+    /**
+     * Frees the bucket, also those set afterwards.
+     */
+    public void releaseBucket() {
+        RandomAccessBucket previous;
+        synchronized (this) {
+            released = true;
+            previous = bucket;
+            bucket = null;
+        }
+        if (previous != null) {
+            previous.free();
+        }
+    }
+
+    // fetch, insert and heal threads set different flags of the same block concurrently
+    private synchronized boolean is(byte flag) {
+        return (status & flag) != 0;
+    }
+
+    private synchronized void set(byte flag, boolean value) {
+        status = (byte) (value ? status | flag : status & ~flag);
     }
 
     public boolean isDataBlock() {
-        return dataBlock;
+        return is(DATA_BLOCK);
     }
 
     public boolean isFetchInProgress() {
-        return !fetchDone;
+        return !is(FETCH_DONE);
     }
 
     public void setFetchDone(boolean done) {
-        fetchDone = done;
+        set(FETCH_DONE, done);
     }
 
     boolean isInsertDone() {
-        return insertDone;
+        return is(INSERT_DONE);
     }
 
     public void setInsertDone(boolean done) {
-        insertDone = done;
+        set(INSERT_DONE, done);
     }
 
     public boolean isInsertSuccessful() {
-        return insertSuccessful;
+        return is(INSERT_SUCCESSFUL);
     }
 
     public void setInsertSuccessful(boolean successful) {
-        insertSuccessful = successful;
+        set(INSERT_SUCCESSFUL, successful);
     }
 
     public boolean isFetchSuccessful() {
-        return fetchSuccessful;
+        return is(FETCH_SUCCESSFUL);
     }
 
     public void setFetchSuccessful(boolean successful) {
-        fetchSuccessful = successful;
+        set(FETCH_SUCCESSFUL, successful);
     }
 
-    public String getResultLog() {
-        return resultLog;
+    public boolean isHealable() {
+        return !is(NOT_HEALABLE);
     }
 
-    public void setResultLog(String result) {
-        resultLog = result;
+    public void setHealable(boolean healable) {
+        set(NOT_HEALABLE, !healable);
     }
 
-    public void appendResultLog(String result) {
-        resultLog += result;
+    public BlockHistory getHistory() {
+        return history;
+    }
+
+    public void setHistory(BlockHistory history) {
+        this.history = history;
+    }
+
+    public BlockResult getResult() {
+        return result;
+    }
+
+    public void setResult(BlockResult result) {
+        setResult(result, null);
+    }
+
+    /**
+     * @param detail e.g. the error message or the inserted uri
+     */
+    public void setResult(BlockResult result, String detail) {
+        this.result = result;
+        resultDetail = detail;
+    }
+
+    public String getResultLog() {
+        if (result == null) {
+            return null;
+        }
+        return "-> " + result.getMessage() + (resultDetail != null ? ": " + resultDetail : "");
     }
 }
@@ -0,0 +1,87 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.model;
+
+import freenet.keys.FreenetURI;
+import freenet.support.HexUtil;
+
+/**
+ * Outcome of earlier fetches and inserts of a block, kept across passes.
+ */
+public class BlockHistory {
+
+    private final String routingKey;
+    private long lastAvailable; // 0 = never
+    private long lastInserted; // 0 = never
+    private int failures; // consecutive failed fetches
+
+    public BlockHistory(String routingKey, long lastAvailable, long lastInserted, int failures) {
+        this.routingKey = routingKey;
+        this.lastAvailable = lastAvailable;
+        this.lastInserted = lastInserted;
+        this.failures = failures;
+    }
+
+    public static String getRoutingKey(FreenetURI uri) {
+        return getRoutingKey(uri.getRoutingKey());
+    }
+
+    public static String getRoutingKey(byte[] routingKey) {
+        return HexUtil.bytesToHex(routingKey);
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    public long getLastAvailable() {
+        return lastAvailable;
+    }
+
+    public long getLastInserted() {
+        return lastInserted;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    public synchronized void registerFetch(boolean successful) {
+        if (successful) {
+            lastAvailable = System.currentTimeMillis();
+            failures = 0;
+        } else {
+            failures++;
+        }
+    }
+
+    public synchronized void registerInsert() {
+        lastInserted = System.currentTimeMillis();
+        failures = 0;
+    }
+
+    /**
+     * @param maxAge maximal age of the last successful fetch or insert in milliseconds
+     * @return the block was fetched or inserted recently and has not failed since
+     */
+    public synchronized boolean isFresh(long maxAge) {
+        long lastSeen = Math.max(lastAvailable, lastInserted);
+        return maxAge > 0 && failures == 0 && lastSeen > System.currentTimeMillis() - maxAge;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.model;
+
+import java.util.Arrays;
+
+/**
+ * Blocks of a site grouped by segment. Built once after parsing or loading
+ * the block list, so a segment can be set up without scanning all blocks.
+ * Holds only the positions of the blocks in the {@link BlockTable}.
+ */
+public class BlockIndex {
+
+    private final BlockTable table;
+    private final int[] records; // table indices ordered by segment and block id
+    private final int[] segmentStarts;
+    private final int[] dataBlocksCounts;
+
+    public BlockIndex(BlockTable table) {
+        this.table = table;
+        int maxSegmentId = -1;
+        for (int i = 0; i < table.size(); i++) {
+            maxSegmentId = Math.max(maxSegmentId, table.getSegmentId(i));
+        }
+
+        // count blocks per segment
+        segmentStarts = new int[maxSegmentId + 2];
+        dataBlocksCounts = new int[maxSegmentId + 1];
+        for (int i = 0; i < table.size(); i++) {
+            segmentStarts[table.getSegmentId(i) + 1]++;
+            if (table.isDataBlock(i)) {
+                dataBlocksCounts[table.getSegmentId(i)]++;
+            }
+        }
+        for (int i = 1; i < segmentStarts.length; i++) {
+            segmentStarts[i] += segmentStarts[i - 1];
+        }
+
+        // fill one contiguous array
+        records = new int[table.size()];
+        int[] filled = Arrays.copyOf(segmentStarts, maxSegmentId + 1);
+        for (int i = 0; i < table.size(); i++) {
+            records[filled[table.getSegmentId(i)]++] = i;
+        }
+
+        // order by block id (data blocks first, then check blocks)
+        for (int segmentId = 0; segmentId <= maxSegmentId; segmentId++) {
+            sortByBlockId(segmentStarts[segmentId], segmentStarts[segmentId + 1]);
+        }
+    }
+
+    private void sortByBlockId(int from, int to) {
+        long[] sorted = new long[to - from];
+        for (int i = from; i < to; i++) {
+            sorted[i - from] = (long) table.getBlockId(records[i]) << 32 | records[i];
+        }
+        Arrays.sort(sorted);
+        for (int i = from; i < to; i++) {
+            records[i] = (int) sorted[i - from];
+        }
+    }
+
+    public BlockTable getTable() {
+        return table;
+    }
+
+    public int getMaxSegmentId() {
+        return dataBlocksCounts.length - 1;
+    }
+
+    public int getBlocksCount() {
+        return records.length;
+    }
+
+    public int getSegmentSize(int segmentId) {
+        return segmentId < dataBlocksCounts.length ? segmentStarts[segmentId + 1] - segmentStarts[segmentId] : 0;
+    }
+
+    public int getDataBlocksCount(int segmentId) {
+        return segmentId < dataBlocksCounts.length ? dataBlocksCounts[segmentId] : 0;
+    }
+
+    public int getCheckBlocksCount(int segmentId) {
+        return getSegmentSize(segmentId) - getDataBlocksCount(segmentId);
+    }
+
+    /**
+     * @return table index of the i-th block of the segment
+     */
+    public int getRecord(int segmentId, int i) {
+        return records[segmentStarts[segmentId] + i];
+    }
+
+    /**
+     * @return blocks of the segment ordered by block id (new instances on every call)
+     */
+    public Block[] getSegmentBlocks(int segmentId) {
+        Block[] blocks = new Block[getSegmentSize(segmentId)];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = table.getBlock(getRecord(segmentId, i));
+        }
+        return blocks;
+    }
+}
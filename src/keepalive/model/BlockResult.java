@@ -0,0 +1,50 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.model;
+
+/**
+ * Result of the last request of a block, logged after the request.
+ */
+public enum BlockResult {
+
+    FETCH_SUCCESSFUL("fetch successful"),
+    FETCH_FAILED("fetch failed"),
+    FETCH_ERROR("fetch error"),
+    KNOWN_AVAILABLE("available (journal or verified recently), not fetched"),
+    KNOWN_FAILED("fetch failed before a restart (journal), not fetched again"),
+    STILL_AVAILABLE("still available, no insertion"),
+    INSERT_FETCH_FAILED("insertion failed: fetch failed"),
+    INSERTED("inserted"),
+    INSERT_DIFFERENT_URI("insertion failed - different uri"),
+    INSERT_FAILED("insertion failed"),
+    INSERT_ERROR("insertion error"),
+    HANDLED_ELSEWHERE("inserted or verified by another site recently, no insertion"),
+    NOT_HEALABLE("healed block does not match its key, no insertion"),
+    NOT_NEEDED("not needed, no insertion");
+
+    private final String message;
+
+    BlockResult(String message) {
+        this.message = message;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.model;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Blocks of a site in struct-of-arrays form. The keys of all blocks are
+ * packed into one byte array (routing key, crypto key, extra), ids and kind
+ * are kept in primitive arrays and an open-addressing index finds a block by
+ * its key. No FreenetURI or Block object is kept per block; blocks are
+ * created for the segment in work only.
+ */
+public class BlockTable {
+
+    public static final int ROUTING_KEY_LENGTH = 32;
+    public static final int CRYPTO_KEY_LENGTH = 32;
+    public static final int EXTRA_LENGTH = 5;
+    public static final int KEY_LENGTH = ROUTING_KEY_LENGTH + CRYPTO_KEY_LENGTH + EXTRA_LENGTH;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private byte[] keys;
+    private int[] segmentIds;
+    private int[] blockIds;
+    private int[] fileIds;
+    private boolean[] dataBlocks;
+    private final Map<Integer, String> docNames = new HashMap<>(); // only few keys have a name
+    private int[] slots; // index + 1 of the block, 0 if free
+    private int size;
+
+    public BlockTable() {
+        this(MIN_CAPACITY);
+    }
+
+    public BlockTable(int capacity) {
+        capacity = Math.max(MIN_CAPACITY, capacity);
+        keys = new byte[capacity * KEY_LENGTH];
+        segmentIds = new int[capacity];
+        blockIds = new int[capacity];
+        fileIds = new int[capacity];
+        dataBlocks = new boolean[capacity];
+        slots = new int[Integer.highestOneBit(capacity) * 4];
+    }
+
+    /**
+     * @return packed key of a CHK
+     */
+    public static byte[] packKey(FreenetURI uri) {
+        byte[] key = new byte[KEY_LENGTH];
+        copyKeyPart(uri.getRoutingKey(), key, 0, ROUTING_KEY_LENGTH, uri);
+        copyKeyPart(uri.getCryptoKey(), key, ROUTING_KEY_LENGTH, CRYPTO_KEY_LENGTH, uri);
+        copyKeyPart(uri.getExtra(), key, ROUTING_KEY_LENGTH + CRYPTO_KEY_LENGTH, EXTRA_LENGTH, uri);
+        return key;
+    }
+
+    private static void copyKeyPart(byte[] part, byte[] key, int offset, int length, FreenetURI uri) {
+        if (part == null || part.length != length) {
+            throw new IllegalArgumentException("no CHK: " + uri);
+        }
+        System.arraycopy(part, 0, key, offset, length);
+    }
+
+    static FreenetURI unpackUri(byte[] key, int offset, String docName) {
+        return new FreenetURI("CHK", docName,
+                Arrays.copyOfRange(key, offset, offset + ROUTING_KEY_LENGTH),
+                Arrays.copyOfRange(key, offset + ROUTING_KEY_LENGTH, offset + ROUTING_KEY_LENGTH + CRYPTO_KEY_LENGTH),
+                Arrays.copyOfRange(key, offset + ROUTING_KEY_LENGTH + CRYPTO_KEY_LENGTH, offset + KEY_LENGTH));
+    }
+
+    static byte[] unpackRoutingKey(byte[] key, int offset) {
+        return Arrays.copyOfRange(key, offset, offset + ROUTING_KEY_LENGTH);
+    }
+
+    /**
+     * @return false if a block with the key is already registered
+     */
+    public boolean add(FreenetURI uri, int segmentId, int blockId, boolean isDataBlock, int fileId) {
+        return add(packKey(uri), 0, uri.getDocName(), segmentId, blockId, isDataBlock, fileId);
+    }
+
+    /**
+     * @param key    array holding the packed key
+     * @param offset position of the packed key in the array
+     * @return false if a block with the key is already registered
+     */
+    public boolean add(byte[] key, int offset, String docName, int segmentId, int blockId, boolean isDataBlock,
+                       int fileId) {
+        int slot = findSlot(key, offset);
+        if (slots[slot] != 0) {
+            return false;
+        }
+
+        if (size == segmentIds.length) {
+            grow();
+            slot = findSlot(key, offset);
+        }
+        System.arraycopy(key, offset, keys, size * KEY_LENGTH, KEY_LENGTH);
+        segmentIds[size] = segmentId;
+        blockIds[size] = blockId;
+        fileIds[size] = fileId;
+        dataBlocks[size] = isDataBlock;
+        if (docName != null) {
+            docNames.put(size, docName);
+        }
+        slots[slot] = ++size;
+        return true;
+    }
+
+    private void grow() {
+        int capacity = segmentIds.length * 2;
+        keys = Arrays.copyOf(keys, capacity * KEY_LENGTH);
+        segmentIds = Arrays.copyOf(segmentIds, capacity);
+        blockIds = Arrays.copyOf(blockIds, capacity);
+        fileIds = Arrays.copyOf(fileIds, capacity);
+        dataBlocks = Arrays.copyOf(dataBlocks, capacity);
+
+        // rehash (load factor at most 0.5)
+        if (slots.length < capacity * 2) {
+            slots = new int[slots.length * 2];
+            for (int i = 0; i < size; i++) {
+                slots[findSlot(keys, i * KEY_LENGTH)] = i + 1;
+            }
+        }
+    }
+
+    // slot of the key or the free slot to put it (linear probing)
+    private int findSlot(byte[] key, int offset) {
+        int mask = slots.length - 1;
+        int slot = hash(key, offset) & mask;
+        while (slots[slot] != 0 && !keyEquals(slots[slot] - 1, key, offset)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // routing keys are hashes, their first bytes are spread well enough
+    private static int hash(byte[] key, int offset) {
+        int hash = (key[offset] & 0xff) << 24 | (key[offset + 1] & 0xff) << 16 |
+                (key[offset + 2] & 0xff) << 8 | (key[offset + 3] & 0xff);
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean keyEquals(int index, byte[] key, int offset) {
+        int position = index * KEY_LENGTH;
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            if (keys[position + i] != key[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean contains(FreenetURI uri) {
+        return indexOf(packKey(uri), 0) != -1;
+    }
+
+    /**
+     * @return index of the block with the packed key or -1
+     */
+    public int indexOf(byte[] key, int offset) {
+        return slots[findSlot(key, offset)] - 1;
+    }
+
+    /**
+     * @return index of the block with the key of a block of another table or -1
+     */
+    public int indexOf(BlockTable table, int index) {
+        return indexOf(table.keys, index * KEY_LENGTH);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getSegmentId(int index) {
+        return segmentIds[index];
+    }
+
+    public int getBlockId(int index) {
+        return blockIds[index];
+    }
+
+    public int getFileId(int index) {
+        return fileIds[index];
+    }
+
+    public boolean isDataBlock(int index) {
+        return dataBlocks[index];
+    }
+
+    public String getDocName(int index) {
+        return docNames.isEmpty() ? null : docNames.get(index);
+    }
+
+    public byte[] getRoutingKey(int index) {
+        return unpackRoutingKey(keys, index * KEY_LENGTH);
+    }
+
+    /**
+     * @return copy of the packed key
+     */
+    public byte[] getKey(int index) {
+        return Arrays.copyOfRange(keys, index * KEY_LENGTH, (index + 1) * KEY_LENGTH);
+    }
+
+    /**
+     * @return new block instance of the entry
+     */
+    public Block getBlock(int index) {
+        return new Block(getKey(index), getDocName(index), segmentIds[index], blockIds[index],
+                dataBlocks[index], fileIds[index]);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.model;
+
+/**
+ * Serialized metadata of an immutable key as stored in the metadata cache.
+ */
+public class CachedMetadata {
+
+    private final String key;
+    private final String name;
+    private final byte[] data;
+
+    /**
+     * @param name resolved name of the metadata (null if none)
+     * @param data serialized metadata, empty if the key has no metadata
+     */
+    public CachedMetadata(String key, String name, byte[] data) {
+        this.key = key;
+        this.name = name;
+        this.data = data;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean hasMetadata() {
+        return data != null && data.length > 0;
+    }
+}
@@ -23,6 +23,7 @@ import keepalive.service.reinserter.Reinserter;
 public class Segment {
 
     private int id;
+    private final int fileId;
     private final int size;
     private Block[] blocks;
     private int dataBlocksCount;
@@ -30,27 +31,23 @@ public class Segment {
     private int failed = 0;
     private boolean persistenceCheckOk = false;
     private boolean healingNotPossible = false;
+    private boolean verified = false; // already verified in this pass (e.g. unchanged since the last edition)
 
     private final Reinserter reinserter;
 
-    public Segment(Reinserter reinserter, int id, int size) {
+    public Segment(Reinserter reinserter, int id, Block[] blocks, int dataBlocksCount) {
         this.reinserter = reinserter;
         this.id = id;
-        this.size = size;
-        blocks = new Block[size];
+        this.size = blocks.length;
+        this.fileId = blocks[0].getFileId();
+        this.blocks = blocks;
+        this.dataBlocksCount = dataBlocksCount;
     }
 
     public Block getBlock(int id) {
         return blocks[id];
     }
 
-    public void addBlock(Block block) {
-        blocks[block.getId()] = block;
-        if (block.isDataBlock()) {
-            dataBlocksCount++;
-        }
-    }
-
     public Block getDataBlock(int id) {
         return blocks[id];
     }
@@ -96,12 +93,16 @@ public class Segment {
         return id;
     }
 
+    public int getFileId() {
+        return fileId;
+    }
+
     public boolean isFinished() {
         if (blocks == null)
             return true;
 
         boolean finished = true;
-        if (!persistenceCheckOk && !healingNotPossible) {
+        if (!persistenceCheckOk && !healingNotPossible && !verified) {
             if (size == 1) {
                 finished = getBlock(0).isInsertDone();
             } else {
@@ -116,18 +117,29 @@ public class Segment {
 
         // free blocks (especially buckets)
         if (finished) {
+            release();
+        }
+
+        return finished;
+    }
+
+    /**
+     * Frees the buckets of all blocks, also of a segment that is not finished.
+     */
+    public void release() {
+        if (blocks != null) {
             for (int i = 0; i < size; i++) {
-                if (blocks[i].getBucket() != null) {
-                    blocks[i].getBucket().free();
-                }
+                blocks[i].releaseBucket();
             }
             blocks = null;
         }
-
-        return finished;
     }
 
     public void setHealingNotPossible(boolean notPossible) {
         healingNotPossible = notPossible;
     }
+
+    public void setVerified(boolean verified) {
+        this.verified = verified;
+    }
 }
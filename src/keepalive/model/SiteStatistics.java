@@ -0,0 +1,222 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.model;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Statistics of the running pass of a site: available and failed blocks per
+ * segment (prop success_), available segments (success_segments_) and the
+ * estimate and confidence of the file (availability_). Block counters are
+ * updated lock-free by the job threads and the totals are kept up to date,
+ * so a snapshot costs O(1). The properties are written in batches.
+ */
+public class SiteStatistics {
+
+    private final int segmentCount;
+    private final AtomicIntegerArray success;
+    private final AtomicIntegerArray failed;
+    private final AtomicInteger totalSuccess = new AtomicInteger();
+    private final AtomicInteger totalFailed = new AtomicInteger();
+    private final BitSet availableSegments;
+    private int availableSegmentsCount; // guarded by availableSegments
+    private final AtomicIntegerArray estimates;
+    private final AtomicIntegerArray confidences;
+    private volatile boolean dirty;
+
+    public SiteStatistics(int segmentCount) {
+        this.segmentCount = segmentCount;
+        success = new AtomicIntegerArray(segmentCount);
+        failed = new AtomicIntegerArray(segmentCount);
+        availableSegments = new BitSet(segmentCount);
+        estimates = new AtomicIntegerArray(segmentCount);
+        confidences = new AtomicIntegerArray(segmentCount);
+        dirty = true; // not written yet
+    }
+
+    /**
+     * Reads the statistics from the properties.
+     */
+    public static SiteStatistics parse(String successProp, String segmentsProp, String availabilityProp) {
+        int[] successValues = parseValues(successProp);
+        int[] availabilityValues = parseValues(availabilityProp);
+        String segments = segmentsProp != null ? segmentsProp : "";
+
+        SiteStatistics statistics = new SiteStatistics(Math.max(successValues.length / 2, segments.length()));
+        for (int i = 0; i < statistics.segmentCount; i++) {
+            if (i * 2 + 1 < successValues.length) {
+                statistics.setBlocks(i, successValues[i * 2], successValues[i * 2 + 1]);
+            }
+            if (i < segments.length() && segments.charAt(i) == '1') {
+                statistics.setSegmentAvailable(i);
+            }
+            if (i * 2 + 1 < availabilityValues.length) {
+                statistics.setAvailability(i, availabilityValues[i * 2], availabilityValues[i * 2 + 1]);
+            }
+        }
+        statistics.dirty = false;
+        return statistics;
+    }
+
+    private static int[] parseValues(String prop) {
+        if (prop == null || prop.isEmpty()) {
+            return new int[0];
+        }
+        String[] values = prop.split(",");
+        int[] intValues = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                intValues[i] = Integer.parseInt(values[i]);
+            } catch (NumberFormatException e) {
+                intValues[i] = 0;
+            }
+        }
+        return intValues;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    public void setBlocks(int segmentId, int successCount, int failedCount) {
+        totalSuccess.addAndGet(successCount - success.getAndSet(segmentId, successCount));
+        totalFailed.addAndGet(failedCount - failed.getAndSet(segmentId, failedCount));
+        dirty = true;
+    }
+
+    public void setSegmentAvailable(int segmentId) {
+        synchronized (availableSegments) {
+            if (!availableSegments.get(segmentId)) {
+                availableSegments.set(segmentId);
+                availableSegmentsCount++;
+            }
+        }
+        dirty = true;
+    }
+
+    /**
+     * @param estimate   estimated availability of the file in percent
+     * @param confidence confidence of the estimate in percent
+     */
+    public void setAvailability(int segmentId, int estimate, int confidence) {
+        estimates.set(segmentId, estimate);
+        confidences.set(segmentId, confidence);
+        dirty = true;
+    }
+
+    /**
+     * Resets the block counters and the availability of the segment and all
+     * following ones (e.g. when a pass is resumed).
+     */
+    public void clearFrom(int segmentId) {
+        for (int i = segmentId; i < segmentCount; i++) {
+            setBlocks(i, 0, 0);
+        }
+        synchronized (availableSegments) {
+            for (int i = availableSegments.nextSetBit(segmentId); i >= 0; i = availableSegments.nextSetBit(i + 1)) {
+                availableSegments.clear(i);
+                availableSegmentsCount--;
+            }
+        }
+        dirty = true;
+    }
+
+    /**
+     * Takes over all values of a segment of other statistics (e.g. of the previous block list).
+     */
+    public void copySegment(SiteStatistics statistics, int fromSegmentId, int toSegmentId) {
+        setBlocks(toSegmentId, statistics.success.get(fromSegmentId), statistics.failed.get(fromSegmentId));
+        boolean available;
+        synchronized (statistics.availableSegments) {
+            available = statistics.availableSegments.get(fromSegmentId);
+        }
+        if (available) {
+            setSegmentAvailable(toSegmentId);
+        }
+        setAvailability(toSegmentId, statistics.estimates.get(fromSegmentId), statistics.confidences.get(fromSegmentId));
+    }
+
+    public int getSuccess() {
+        return totalSuccess.get();
+    }
+
+    public int getFailed() {
+        return totalFailed.get();
+    }
+
+    /**
+     * @return number of available segments up to the segment (segments ahead of it are still in work)
+     */
+    public int getAvailableSegments(int lastSegmentId) {
+        synchronized (availableSegments) {
+            int end = availableSegments.length();
+            if (lastSegmentId + 1 >= end) {
+                return availableSegmentsCount;
+            }
+            return availableSegmentsCount - availableSegments.get(Math.max(0, lastSegmentId + 1), end).cardinality();
+        }
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Called before the properties are written, later changes mark the statistics dirty again.
+     */
+    public void clearDirty() {
+        dirty = false;
+    }
+
+    // the properties could not be written
+    public void markDirty() {
+        dirty = true;
+    }
+
+    public String formatSuccess() {
+        return formatPairs(success, failed);
+    }
+
+    public String formatSegments() {
+        StringBuilder segments = new StringBuilder(segmentCount);
+        synchronized (availableSegments) {
+            for (int i = 0; i < segmentCount; i++) {
+                segments.append(availableSegments.get(i) ? '1' : '0');
+            }
+        }
+        return segments.toString();
+    }
+
+    public String formatAvailability() {
+        return formatPairs(estimates, confidences);
+    }
+
+    private String formatPairs(AtomicIntegerArray first, AtomicIntegerArray second) {
+        StringBuilder pairs = new StringBuilder(segmentCount * 4);
+        for (int i = 0; i < segmentCount; i++) {
+            if (i > 0) {
+                pairs.append(",");
+            }
+            pairs.append(first.get(i)).append(",").append(second.get(i));
+        }
+        return pairs.toString();
+    }
+}
@@ -0,0 +1,253 @@
+package keepalive.repository;
+
+import keepalive.Plugin;
+import keepalive.model.BlockHistory;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BlockHistoryRepository {
+
+    // number of changed histories written at once
+    private static final int BATCH_SIZE = 256;
+
+    // histories kept in memory and shared by all sites
+    private static final int SHARED_HISTORIES = 65536;
+
+    private final Plugin plugin;
+
+    private static BlockHistoryRepository instance;
+
+    private static final String SQL_FIND = "SELECT routing_key, last_available, last_inserted, failures FROM BlockHistory WHERE routing_key IN (%s)";
+    private static final String SQL_MERGE = "MERGE INTO BlockHistory (routing_key, last_available, last_inserted, failures, last_activity) KEY (routing_key) VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP)";
+    private static final String SQL_DELETE_SITE = "DELETE FROM BlockSite WHERE site_id = ?";
+    private static final String SQL_SAVE_SITE = "MERGE INTO BlockSite (routing_key, site_id) KEY (routing_key, site_id) VALUES (?, ?)";
+    private static final String SQL_COUNT_SITE = "SELECT COUNT(*) FROM BlockSite WHERE site_id = ?";
+    private static final String SQL_COUNT_SHARED = "SELECT COUNT(DISTINCT a.routing_key) FROM BlockSite a JOIN BlockSite b ON a.routing_key = b.routing_key AND a.site_id <> b.site_id WHERE a.site_id = ?";
+    private static final String SQL_DELETE_OLD = "DELETE FROM BlockHistory WHERE last_activity < ?";
+
+    private final Map<String, BlockHistory> pending = new LinkedHashMap<>();
+
+    // blocks shared by sites get the same instance, so a result of one site is seen by the others at once
+    private final Map<String, BlockHistory> shared = new LinkedHashMap<String, BlockHistory>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BlockHistory> eldest) {
+            return size() > SHARED_HISTORIES;
+        }
+    };
+
+    private BlockHistoryRepository(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    public static synchronized BlockHistoryRepository getInstance(Plugin plugin) {
+        if (instance == null) {
+            instance = new BlockHistoryRepository(plugin);
+        }
+        return instance;
+    }
+
+    /**
+     * @return histories of the routing keys, new (empty) ones for unknown keys
+     */
+    public Map<String, BlockHistory> findAll(Collection<String> routingKeys) {
+        Map<String, BlockHistory> histories = new HashMap<>();
+        List<String> unknownKeys = new ArrayList<>();
+        synchronized (shared) {
+            for (String routingKey : routingKeys) {
+                BlockHistory history = shared.get(routingKey);
+                if (history == null) {
+                    synchronized (pending) {
+                        history = pending.get(routingKey);
+                    }
+                }
+                if (history != null) {
+                    histories.put(routingKey, history);
+                } else {
+                    unknownKeys.add(routingKey);
+                }
+            }
+        }
+
+        // one query per batch of keys
+        try (Connection connection = DB.getConnection()) {
+            for (int start = 0; start < unknownKeys.size(); start += BATCH_SIZE) {
+                List<String> batch = unknownKeys.subList(start, Math.min(start + BATCH_SIZE, unknownKeys.size()));
+                try (PreparedStatement preparedStatement = connection.prepareStatement(findSql(batch.size()))) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        preparedStatement.setString(i + 1, batch.get(i));
+                    }
+                    try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                        while (resultSet.next()) {
+                            String routingKey = resultSet.getString("routing_key");
+                            histories.put(routingKey, new BlockHistory(routingKey,
+                                    toMillis(resultSet.getTimestamp("last_available")),
+                                    toMillis(resultSet.getTimestamp("last_inserted")),
+                                    resultSet.getInt("failures")));
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+
+        synchronized (shared) {
+            for (String routingKey : routingKeys) {
+                if (!histories.containsKey(routingKey)) {
+                    histories.put(routingKey, new BlockHistory(routingKey, 0, 0, 0));
+                }
+
+                // another site may have loaded the same block in the meantime
+                BlockHistory history = shared.get(routingKey);
+                if (history != null) {
+                    histories.put(routingKey, history);
+                } else {
+                    shared.put(routingKey, histories.get(routingKey));
+                }
+            }
+        }
+        return histories;
+    }
+
+    /**
+     * Registers the blocks referenced by a site (replaces the previous ones).
+     */
+    public void saveSiteBlocks(int siteId, Collection<String> routingKeys) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement deletePreparedStatement = connection.prepareStatement(SQL_DELETE_SITE);
+             PreparedStatement savePreparedStatement = connection.prepareStatement(SQL_SAVE_SITE)) {
+            connection.setAutoCommit(false);
+            deletePreparedStatement.setInt(1, siteId);
+            deletePreparedStatement.executeUpdate();
+            int batch = 0;
+            for (String routingKey : routingKeys) {
+                savePreparedStatement.setString(1, routingKey);
+                savePreparedStatement.setInt(2, siteId);
+                savePreparedStatement.addBatch();
+                if (++batch % BATCH_SIZE == 0) {
+                    savePreparedStatement.executeBatch();
+                }
+            }
+            savePreparedStatement.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return number of blocks registered for a site
+     */
+    public int countSiteBlocks(int siteId) {
+        return count(SQL_COUNT_SITE, siteId);
+    }
+
+    /**
+     * @return number of blocks of a site that are referenced by other sites as well
+     */
+    public int countSharedBlocks(int siteId) {
+        return count(SQL_COUNT_SHARED, siteId);
+    }
+
+    private int count(String sql, int siteId) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            preparedStatement.setInt(1, siteId);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+        return 0;
+    }
+
+    public void deleteSiteBlocks(int siteId) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_DELETE_SITE)) {
+            preparedStatement.setInt(1, siteId);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Queues a changed history, written with the next batch.
+     */
+    public void save(BlockHistory history) {
+        boolean flush;
+        synchronized (pending) {
+            pending.put(history.getRoutingKey(), history);
+            flush = pending.size() >= BATCH_SIZE;
+        }
+        if (flush) {
+            flush();
+        }
+    }
+
+    public void flush() {
+        List<BlockHistory> histories;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            histories = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_MERGE)) {
+            connection.setAutoCommit(false);
+            for (BlockHistory history : histories) {
+                preparedStatement.setString(1, history.getRoutingKey());
+                preparedStatement.setTimestamp(2, toTimestamp(history.getLastAvailable()));
+                preparedStatement.setTimestamp(3, toTimestamp(history.getLastInserted()));
+                preparedStatement.setInt(4, history.getFailures());
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes histories without any fetch or insert result for the given time
+     * (e.g. of removed sites). Histories of failing blocks are kept as long as
+     * their failures are still recorded.
+     */
+    public void deleteOlderThan(long maxAge) {
+        Timestamp limit = new Timestamp(System.currentTimeMillis() - maxAge);
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_DELETE_OLD)) {
+            preparedStatement.setTimestamp(1, limit);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+    }
+
+    private static String findSql(int keys) {
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < keys; i++) {
+            parameters.append(i > 0 ? ", ?" : "?");
+        }
+        return String.format(SQL_FIND, parameters);
+    }
+
+    private static long toMillis(Timestamp timestamp) {
+        return timestamp != null ? timestamp.getTime() : 0;
+    }
+
+    private static Timestamp toTimestamp(long millis) {
+        return millis > 0 ? new Timestamp(millis) : null;
+    }
+}
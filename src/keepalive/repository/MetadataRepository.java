@@ -0,0 +1,83 @@
+package keepalive.repository;
+
+import keepalive.Plugin;
+import keepalive.model.CachedMetadata;
+
+import java.sql.*;
+
+/**
+ * Metadata of immutable keys (CHK manifests, archives and metadata
+ * splitfiles), so parsing a site again only fetches keys not seen before.
+ */
+public class MetadataRepository {
+
+    private final Plugin plugin;
+
+    private static MetadataRepository instance;
+
+    private static final String SQL_FIND = "SELECT name, data FROM Metadata WHERE cache_key = ?";
+    private static final String SQL_MERGE = "MERGE INTO Metadata (cache_key, name, data, last_access) KEY (cache_key) VALUES (?, ?, ?, CURRENT_TIMESTAMP)";
+    private static final String SQL_LAST_ACCESS_UPDATE = "UPDATE Metadata SET last_access = CURRENT_TIMESTAMP WHERE cache_key = ?";
+    private static final String SQL_DELETE_OLD = "DELETE FROM Metadata WHERE last_access < ?";
+
+    private MetadataRepository(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    public static synchronized MetadataRepository getInstance(Plugin plugin) {
+        if (instance == null) {
+            instance = new MetadataRepository(plugin);
+        }
+        return instance;
+    }
+
+    /**
+     * @return cached metadata or null if the key is not cached
+     */
+    public CachedMetadata findOne(String key) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_FIND)) {
+            preparedStatement.setString(1, key);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                CachedMetadata cachedMetadata = new CachedMetadata(key,
+                        resultSet.getString("name"), resultSet.getBytes("data"));
+                try (PreparedStatement updatePreparedStatement = connection.prepareStatement(SQL_LAST_ACCESS_UPDATE)) {
+                    updatePreparedStatement.setString(1, key);
+                    updatePreparedStatement.executeUpdate();
+                }
+                return cachedMetadata;
+            }
+        } catch (SQLException e) {
+            plugin.log(e.getMessage() + " " + key, e);
+        }
+        return null;
+    }
+
+    public void save(CachedMetadata cachedMetadata) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_MERGE)) {
+            preparedStatement.setString(1, cachedMetadata.getKey());
+            preparedStatement.setString(2, cachedMetadata.getName());
+            preparedStatement.setBytes(3, cachedMetadata.getData());
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes metadata not used for the given time (e.g. of removed sites).
+     */
+    public void deleteOlderThan(long maxAge) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(SQL_DELETE_OLD)) {
+            preparedStatement.setTimestamp(1, new Timestamp(System.currentTimeMillis() - maxAge));
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            plugin.log(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package keepalive.repository;
+
+import keepalive.Plugin;
+import keepalive.model.SiteStatistics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of the sites, kept in memory and written to the properties
+ * (success_, success_segments_, availability_) in the background.
+ */
+public class StatisticsRepository {
+
+    // seconds between two writes of changed statistics
+    private static final int FLUSH_INTERVAL = 10;
+
+    private final Plugin plugin;
+
+    private static StatisticsRepository instance;
+
+    private final Map<Integer, SiteStatistics> statistics = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService writer;
+
+    private StatisticsRepository(Plugin plugin) {
+        this.plugin = plugin;
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "KeepAlive statistics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        writer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    StatisticsRepository.this.plugin.log("StatisticsRepository.flush()", e);
+                }
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    public static synchronized StatisticsRepository getInstance(Plugin plugin) {
+        if (instance == null) {
+            instance = new StatisticsRepository(plugin);
+        }
+        return instance;
+    }
+
+    /**
+     * @return statistics of the site, read from the properties on first access
+     */
+    public SiteStatistics find(int siteId) {
+        SiteStatistics siteStatistics = statistics.get(siteId);
+        if (siteStatistics == null) {
+            synchronized (this) {
+                siteStatistics = statistics.get(siteId);
+                if (siteStatistics == null) {
+                    siteStatistics = SiteStatistics.parse(plugin.getProp("success_" + siteId),
+                            plugin.getProp("success_segments_" + siteId), plugin.getProp("availability_" + siteId));
+                    statistics.put(siteId, siteStatistics);
+                }
+            }
+        }
+        return siteStatistics;
+    }
+
+    /**
+     * Replaces the statistics of the site by empty ones (e.g. at the start of a pass).
+     */
+    public SiteStatistics create(int siteId, int segmentCount) {
+        SiteStatistics siteStatistics = new SiteStatistics(segmentCount);
+        synchronized (this) {
+            statistics.put(siteId, siteStatistics);
+        }
+        return siteStatistics;
+    }
+
+    public synchronized void delete(int siteId) {
+        statistics.remove(siteId);
+    }
+
+    /**
+     * Writes the changed statistics to the properties. The properties are
+     * saved at once (not throttled); if that fails the statistics stay dirty
+     * and are written by the next flush.
+     */
+    public synchronized void flush() {
+        List<SiteStatistics> flushed = new ArrayList<>();
+        for (Map.Entry<Integer, SiteStatistics> entry : statistics.entrySet()) {
+            SiteStatistics siteStatistics = entry.getValue();
+            if (siteStatistics.isDirty()) {
+                siteStatistics.clearDirty(); // changes while formatting mark it dirty again
+                plugin.setProp("success_" + entry.getKey(), siteStatistics.formatSuccess());
+                plugin.setProp("success_segments_" + entry.getKey(), siteStatistics.formatSegments());
+                plugin.setProp("availability_" + entry.getKey(), siteStatistics.formatAvailability());
+                flushed.add(siteStatistics);
+            }
+        }
+        if (!flushed.isEmpty() && !plugin.saveProp(true)) {
+            for (SiteStatistics siteStatistics : flushed) {
+                siteStatistics.markDirty();
+            }
+        }
+    }
+
+    public static synchronized void close() {
+        if (instance != null) {
+            instance.writer.shutdownNow();
+            instance.flush();
+            instance = null;
+        }
+    }
+}
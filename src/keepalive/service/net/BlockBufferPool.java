@@ -0,0 +1,346 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.net;
+
+import freenet.keys.CHKBlock;
+import freenet.support.api.Bucket;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.ArrayBucket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable buffers for the data of CHK blocks. A fetched block is copied
+ * once into a buffer which is then used by the FEC codec and the insert
+ * without further copies, and returned to the pool when the bucket is freed.
+ * <p>
+ * All buffers in use count against a memory budget. Above the budget the
+ * least recently used buckets that are not in use are moved to a spill file
+ * and read back when needed; fetches reserve a buffer before they start. Spill
+ * file I/O runs outside the lock of the pool.
+ */
+public class BlockBufferPool {
+
+    public static final int BLOCK_SIZE = CHKBlock.DATA_LENGTH;
+
+    // longest wait for capacity before a fetch goes over the budget
+    private static final long MAX_CAPACITY_WAIT = TimeUnit.SECONDS.toMillis(30);
+
+    private final BlockingQueue<byte[]> buffers;
+    private final SpillStore spillStore;
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    // buckets in memory, least recently used first
+    private final LinkedHashMap<PooledBucket, Boolean> residentBuckets = new LinkedHashMap<>(16, 0.75f, true);
+    private int budget;
+    private int inUse;
+    private int reserved; // buffers promised to fetches by awaitCapacity
+    private int spilling; // buffers being written to the spill file
+    private long spilled;
+    private long loaded;
+    private long overBudget;
+
+    /**
+     * @param maxPooled maximal number of free buffers kept for reuse
+     * @param budget    maximal number of buffers in memory
+     * @param spillFile file for buffers above the budget, null to keep everything in memory
+     */
+    public BlockBufferPool(int maxPooled, int budget, File spillFile) {
+        buffers = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+        this.budget = Math.max(1, budget);
+        spillStore = spillFile != null ? new SpillStore(spillFile, BLOCK_SIZE) : null;
+    }
+
+    public synchronized void setBudget(int budget) {
+        this.budget = Math.max(1, budget);
+        notifyAll();
+    }
+
+    /**
+     * Blocks until a buffer is available within the budget (after spilling
+     * unused buckets if necessary) and reserves it for the caller, who must
+     * either pass the reservation to {@link #copyOf(Bucket, boolean)} or
+     * {@link #cancelReservation()}. If nothing can be spilled (all buckets
+     * pinned or the spill file failed) and no buffer is released in time,
+     * the reservation goes over the budget instead of waiting forever, since
+     * the pinned buckets may belong to segments waiting for this fetch.
+     */
+    public void awaitCapacity() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + MAX_CAPACITY_WAIT;
+        while (true) {
+            synchronized (this) {
+                if (inUse + reserved < budget) {
+                    reserved++;
+                    return;
+                }
+            }
+            if (reclaimOne()) {
+                continue;
+            }
+            synchronized (this) {
+                if (inUse + reserved < budget) {
+                    continue;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    overBudget++;
+                    reserved++;
+                    return;
+                }
+                wait(Math.min(remaining, 1000));
+            }
+        }
+    }
+
+    /**
+     * Returns a reservation of {@link #awaitCapacity()} that is not used.
+     */
+    public synchronized void cancelReservation() {
+        if (reserved > 0) {
+            reserved--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return buffer of {@link #BLOCK_SIZE} bytes, not cleared
+     */
+    public byte[] acquire() {
+        // the budget is a soft limit here, healing needs all buffers of a segment at once
+        while (reclaimOne()) {
+            // spilled one bucket
+        }
+        return take(false);
+    }
+
+    public synchronized void release(byte[] buffer) {
+        if (buffer != null && buffer.length == BLOCK_SIZE) {
+            inUse--;
+            buffers.offer(buffer); // dropped if the pool is full
+            notifyAll();
+        }
+    }
+
+    /**
+     * Copies the data of a bucket, into a pooled buffer if it has the size of a block.
+     *
+     * @param reserved whether the caller holds a reservation of {@link #awaitCapacity()},
+     *                 which is used up by this call
+     */
+    public RandomAccessBucket copyOf(Bucket bucket, boolean reserved) throws IOException {
+        if (bucket.size() != BLOCK_SIZE) {
+            if (reserved) {
+                cancelReservation();
+            }
+            byte[] data = new byte[(int) bucket.size()];
+            readFully(bucket, data);
+            return new ArrayBucket(data);
+        }
+
+        byte[] buffer = reserved ? take(true) : acquire();
+        try {
+            readFully(bucket, buffer);
+        } catch (IOException e) {
+            release(buffer);
+            throw e;
+        }
+        return wrap(buffer);
+    }
+
+    /**
+     * @return a new bucket over a buffer of this pool
+     */
+    public PooledBucket wrap(byte[] buffer) {
+        PooledBucket bucket = new PooledBucket(this, buffer);
+        register(bucket);
+        return bucket;
+    }
+
+    public synchronized void close() {
+        residentBuckets.clear();
+        if (spillStore != null) {
+            spillStore.close();
+        }
+    }
+
+    synchronized void register(PooledBucket bucket) {
+        residentBuckets.put(bucket, Boolean.TRUE);
+    }
+
+    synchronized void unregister(PooledBucket bucket) {
+        residentBuckets.remove(bucket);
+    }
+
+    synchronized void touch(PooledBucket bucket) {
+        residentBuckets.get(bucket);
+    }
+
+    // reads a spilled buffer back, called without holding the lock
+    byte[] load(int slot) throws IOException {
+        byte[] buffer = acquire();
+        try {
+            spillStore.read(slot, buffer);
+        } catch (IOException e) {
+            release(buffer);
+            throw e;
+        }
+        synchronized (this) {
+            loaded++;
+        }
+        return buffer;
+    }
+
+    synchronized void freeSlot(int slot) {
+        spillStore.free(slot);
+    }
+
+    private synchronized byte[] take(boolean reserved) {
+        if (reserved && this.reserved > 0) {
+            this.reserved--;
+        }
+        inUse++;
+
+        byte[] buffer = buffers.poll();
+        if (buffer != null) {
+            reused.incrementAndGet();
+            return buffer;
+        }
+        allocated.incrementAndGet();
+        return new byte[BLOCK_SIZE];
+    }
+
+    /**
+     * Moves the least recently used bucket that is not in use to the spill
+     * file if the buffers in use (apart from those already being spilled)
+     * exceed the budget. The bucket is claimed under the lock and written
+     * after the lock is released.
+     *
+     * @return true if a buffer was released
+     */
+    private boolean reclaimOne() {
+        PooledBucket bucket = null;
+        byte[] buffer = null;
+        int slot;
+        synchronized (this) {
+            if (spillStore == null || inUse - spilling + reserved < budget) {
+                return false;
+            }
+
+            Iterator<PooledBucket> iterator = residentBuckets.keySet().iterator();
+            while (iterator.hasNext()) {
+                PooledBucket candidate = iterator.next();
+                if (!candidate.isPinned()) {
+                    iterator.remove();
+                    bucket = candidate;
+                    buffer = bucket.beginSpill();
+                    break;
+                }
+            }
+            if (bucket == null) {
+                return false;
+            }
+            spilling++;
+        }
+
+        try {
+            slot = spillStore.allocate();
+        } catch (IOException e) {
+            slot = -1;
+        }
+        if (slot != -1) {
+            try {
+                spillStore.write(slot, buffer);
+            } catch (IOException e) {
+                spillStore.free(slot);
+                slot = -1;
+            }
+        }
+
+        synchronized (this) {
+            spilling--;
+            notifyAll();
+            boolean released = bucket.finishSpill(slot);
+            if (released && slot != -1) {
+                spilled++;
+            }
+            return released;
+        }
+    }
+
+    private static void readFully(Bucket bucket, byte[] data) throws IOException {
+        try (InputStream in = bucket.getInputStream()) {
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    throw new IOException("bucket shorter than expected (" + read + "/" + data.length + ")");
+                }
+                read += count;
+            }
+        }
+    }
+
+    public synchronized int getBudget() {
+        return budget;
+    }
+
+    public synchronized int getInUseCount() {
+        return inUse;
+    }
+
+    public synchronized int getSpilledCount() {
+        return spillStore != null ? spillStore.getUsedSlots() : 0;
+    }
+
+    public synchronized long getSpillWrites() {
+        return spilled;
+    }
+
+    public synchronized long getSpillReads() {
+        return loaded;
+    }
+
+    /**
+     * @return number of fetches that went over the budget after waiting for capacity
+     */
+    public synchronized long getOverBudgetCount() {
+        return overBudget;
+    }
+
+    public int getPooledCount() {
+        return buffers.size();
+    }
+
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.net;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Tunes the number of parallel jobs of one lane (AIMD, like TCP congestion
+ * control). After every window of finished jobs the limit grows by one while
+ * jobs are waiting and the latency of the requests stays close to the lowest
+ * latency seen recently, and shrinks by a quarter when too many requests are
+ * rejected by the network or the latency climbs far above it. The latency
+ * of the finished requests is the signal of the node's load; waiting jobs
+ * only show that more parallel requests would be used.
+ */
+public class ConcurrencyController {
+
+    private static final int MIN_WINDOW = 10;
+    private static final double BACKOFF = 0.75;
+    private static final double MAX_OVERLOAD_RATE = 0.3;
+    private static final double MIN_LATENCY_GRADIENT = 0.5;
+    private static final double HEALTHY_LATENCY_GRADIENT = 0.8;
+    private static final double BASELINE_DRIFT = 1.05;
+    private static final int MAX_DECISIONS = 10;
+
+    private final JobExecutor executor;
+    private final JobExecutor.Lane lane;
+    private final LinkedList<String> decisions = new LinkedList<>();
+
+    private boolean adaptive;
+    private int minLimit;
+    private int maxLimit;
+    private int limit;
+
+    private int windowJobs;
+    private int windowOverloaded;
+    private long windowLatency;
+    private double baselineLatency;
+
+    ConcurrencyController(JobExecutor executor, JobExecutor.Lane lane, int limit) {
+        this.executor = executor;
+        this.lane = lane;
+        this.limit = limit;
+        this.minLimit = limit;
+        this.maxLimit = limit;
+    }
+
+    synchronized void configure(boolean adaptive, int minLimit, int maxLimit) {
+        this.adaptive = adaptive;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.minLimit = Math.max(1, Math.min(minLimit, this.maxLimit));
+
+        int newLimit = adaptive ? Math.max(this.minLimit, Math.min(limit, this.maxLimit)) : this.maxLimit;
+        if (newLimit != limit) {
+            setLimit(newLimit, "configuration changed");
+        }
+    }
+
+    /**
+     * Called by a job after its request finished.
+     *
+     * @param latency    duration of the request in milliseconds
+     * @param overloaded the request failed because the network or node was overloaded
+     */
+    public synchronized void onJobFinished(long latency, boolean overloaded) {
+        if (!adaptive) {
+            return;
+        }
+
+        windowJobs++;
+        windowLatency += latency;
+        if (overloaded) {
+            windowOverloaded++;
+        }
+
+        if (windowJobs >= Math.max(MIN_WINDOW, limit)) {
+            adjust();
+            windowJobs = 0;
+            windowOverloaded = 0;
+            windowLatency = 0;
+        }
+    }
+
+    private void adjust() {
+        double latency = (double) windowLatency / windowJobs;
+        if (baselineLatency == 0) {
+            baselineLatency = latency;
+        } else {
+            // let the baseline follow slowly if the network becomes slower in general
+            baselineLatency = Math.min(latency, baselineLatency * BASELINE_DRIFT);
+        }
+        double gradient = baselineLatency / Math.max(1, latency);
+        double overloadRate = (double) windowOverloaded / windowJobs;
+        int backlog = executor.getQueueDepth(lane);
+
+        if (overloadRate > MAX_OVERLOAD_RATE) {
+            decrease((int) (overloadRate * 100) + "% of requests overloaded");
+        } else if (gradient < MIN_LATENCY_GRADIENT) {
+            decrease("latency " + (long) latency + " ms (baseline " + (long) baselineLatency + " ms)");
+        } else if (gradient >= HEALTHY_LATENCY_GRADIENT && backlog > 0 && limit < maxLimit) {
+            setLimit(limit + 1, backlog + " jobs waiting, latency " + (long) latency + " ms");
+        }
+    }
+
+    private void decrease(String reason) {
+        int newLimit = Math.max(minLimit, (int) (limit * BACKOFF));
+        if (newLimit < limit) {
+            setLimit(newLimit, reason);
+        }
+    }
+
+    private void setLimit(int newLimit, String reason) {
+        String date = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        decisions.addFirst(date + " " + limit + " -> " + newLimit + ": " + reason);
+        if (decisions.size() > MAX_DECISIONS) {
+            decisions.removeLast();
+        }
+
+        limit = newLimit;
+        executor.resize(lane, newLimit);
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public synchronized List<String> getDecisions() {
+        return new ArrayList<>(decisions);
+    }
+}
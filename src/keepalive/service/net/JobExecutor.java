@@ -0,0 +1,285 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.net;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plugin-wide executor for {@link SingleFetch} and {@link SingleInsert} jobs
+ * of all running sites. Fetches and inserts run in separate lanes, each with
+ * its own number of threads and a bounded number of waiting jobs. Submitting
+ * blocks while a lane is full. The number of threads is either the "power"
+ * or tuned between "power_min" and "power" by a {@link ConcurrencyController}.
+ */
+public class JobExecutor {
+
+    public enum Lane {
+        FETCH, INSERT
+    }
+
+    // waiting jobs per thread before submitting blocks
+    private static final int QUEUE_FACTOR = 4;
+
+    // longest wait for cancelled jobs to leave their callable
+    private static final long MAX_CANCEL_WAIT = TimeUnit.SECONDS.toMillis(10);
+
+    private final LaneExecutor[] lanes = new LaneExecutor[Lane.values().length];
+    private final ConcurrencyController[] controllers = new ConcurrencyController[Lane.values().length];
+
+    public JobExecutor(int power) {
+        for (Lane lane : Lane.values()) {
+            lanes[lane.ordinal()] = new LaneExecutor(lane, power);
+            controllers[lane.ordinal()] = new ConcurrencyController(this, lane, Math.max(1, power));
+        }
+    }
+
+    public <T> Future<T> submit(Lane lane, Callable<T> job) throws InterruptedException {
+        return submit(lane, job, null);
+    }
+
+    /**
+     * Submits a job whose future is added to the completion queue as soon as
+     * it is finished (or cancelled).
+     */
+    public <T> Future<T> submit(Lane lane, Callable<T> job, BlockingQueue<Future<T>> completions)
+            throws InterruptedException {
+        LaneExecutor laneExecutor = lanes[lane.ordinal()];
+        return laneExecutor.submit(laneExecutor.new Job<>(job, completions));
+    }
+
+    public Future<Object> submit(Lane lane, Runnable job, BlockingQueue<Future<Object>> completions)
+            throws InterruptedException {
+        return submit(lane, Executors.callable(job), completions);
+    }
+
+    /**
+     * Cancels the jobs and waits (at most {@link #MAX_CANCEL_WAIT} ms) until
+     * the running ones have left their callable, so they do not touch their
+     * blocks anymore afterwards.
+     *
+     * @return all cancelled jobs have stopped
+     */
+    public boolean cancel(Collection<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+
+        long deadline = System.currentTimeMillis() + MAX_CANCEL_WAIT;
+        boolean interrupted = false;
+        boolean stopped = true;
+        for (Future<?> future : futures) {
+            if (future instanceof LaneExecutor.Job) {
+                while (true) {
+                    try {
+                        stopped &= ((LaneExecutor.Job<?>) future).awaitStopped(deadline);
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true; // usually the reason of the cancel, kept for the caller
+                    }
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return stopped;
+    }
+
+    public void configure(boolean adaptive, int minPower, int maxPower) {
+        for (ConcurrencyController controller : controllers) {
+            controller.configure(adaptive, minPower, maxPower);
+        }
+    }
+
+    public ConcurrencyController getController(Lane lane) {
+        return controllers[lane.ordinal()];
+    }
+
+    void resize(Lane lane, int power) {
+        lanes[lane.ordinal()].setPower(power);
+    }
+
+    public int getPower(Lane lane) {
+        return lanes[lane.ordinal()].executor.getMaximumPoolSize();
+    }
+
+    public int getQueueDepth(Lane lane) {
+        return lanes[lane.ordinal()].executor.getQueue().size();
+    }
+
+    public int getActiveCount(Lane lane) {
+        return lanes[lane.ordinal()].executor.getActiveCount();
+    }
+
+    public long getCompletedCount(Lane lane) {
+        return lanes[lane.ordinal()].executor.getCompletedTaskCount();
+    }
+
+    public long getRejectedCount(Lane lane) {
+        return lanes[lane.ordinal()].rejected.get();
+    }
+
+    public void shutdown() {
+        for (LaneExecutor lane : lanes) {
+            lane.executor.shutdownNow();
+        }
+        for (LaneExecutor lane : lanes) {
+            try {
+                lane.executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static class LaneExecutor {
+
+        private final ThreadPoolExecutor executor;
+        private final ResizableSemaphore slots;
+        private final AtomicLong rejected = new AtomicLong();
+        private int power;
+
+        LaneExecutor(final Lane lane, int power) {
+            this.power = Math.max(1, power);
+            slots = new ResizableSemaphore(this.power * (QUEUE_FACTOR + 1));
+
+            // the queue itself is unbounded, the number of waiting jobs is limited by the slots
+            executor = new ThreadPoolExecutor(this.power, this.power, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final ThreadFactory factory = Executors.defaultThreadFactory();
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = factory.newThread(runnable);
+                            thread.setName("KeepAlive " + lane.name().toLowerCase() + " " + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        <T> Future<T> submit(Job<T> job) throws InterruptedException {
+            if (executor.isShutdown()) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("job executor is shut down");
+            }
+
+            slots.acquire();
+            try {
+                executor.execute(job);
+            } catch (RejectedExecutionException e) {
+                job.cancel(false); // releases the slot
+                rejected.incrementAndGet();
+                throw e;
+            }
+            return job;
+        }
+
+        synchronized void setPower(int newPower) {
+            newPower = Math.max(1, newPower);
+            if (newPower == power) {
+                return;
+            }
+
+            if (newPower > power) {
+                executor.setMaximumPoolSize(newPower);
+                executor.setCorePoolSize(newPower);
+                slots.release((newPower - power) * (QUEUE_FACTOR + 1));
+            } else {
+                executor.setCorePoolSize(newPower);
+                executor.setMaximumPoolSize(newPower);
+                slots.reducePermits((power - newPower) * (QUEUE_FACTOR + 1));
+            }
+            power = newPower;
+        }
+
+        // frees its slot and reports itself when finished or cancelled
+        private class Job<T> extends FutureTask<T> {
+
+            private final BlockingQueue<Future<T>> completions;
+            private final AtomicBoolean claimed = new AtomicBoolean(); // started or given up
+            private final CountDownLatch stopped = new CountDownLatch(1);
+
+            Job(Callable<T> callable, BlockingQueue<Future<T>> completions) {
+                super(callable);
+                this.completions = completions;
+            }
+
+            @Override
+            public void run() {
+                if (!claimed.compareAndSet(false, true)) {
+                    return; // cancelled before it was started
+                }
+                try {
+                    super.run();
+                } finally {
+                    stopped.countDown();
+                }
+            }
+
+            // called after cancel
+            boolean awaitStopped(long deadline) throws InterruptedException {
+                if (claimed.compareAndSet(false, true)) {
+                    return true; // never started
+                }
+                return stopped.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            protected void done() {
+                slots.release();
+                if (completions != null) {
+                    completions.add(this);
+                }
+            }
+        }
+    }
+
+    private static class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
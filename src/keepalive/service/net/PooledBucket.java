@@ -0,0 +1,263 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.net;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.ByteArrayRandomAccessBuffer;
+import freenet.support.io.LockableRandomAccessBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Read-only bucket over a buffer of a {@link BlockBufferPool}. The buffer is
+ * used directly (not copied) and returned to the pool when the bucket is
+ * freed. While the bucket is not pinned (no open stream, not being healed)
+ * the pool may move its data to the spill file; it is read back on access.
+ */
+public class PooledBucket implements RandomAccessBucket {
+
+    private final BlockBufferPool pool;
+    private byte[] buffer; // null if spilled or freed
+    private int spillSlot = -1;
+    private int pins;
+    private boolean freed;
+    private boolean loading;
+
+    PooledBucket(BlockBufferPool pool, byte[] buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Keeps the data in memory until {@link #unpin()}.
+     *
+     * @return the buffer itself
+     */
+    public byte[] pin() throws IOException {
+        int slot;
+        synchronized (pool) {
+            if (freed) {
+                throw new IOException("bucket already freed");
+            }
+            pins++;
+            try {
+                while (loading) {
+                    pool.wait(); // read back by another thread
+                }
+            } catch (InterruptedException e) {
+                unpin();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while loading the bucket");
+            }
+            if (buffer != null) {
+                pool.touch(this);
+                return buffer;
+            }
+            loading = true;
+            slot = spillSlot;
+        }
+
+        // read back outside the lock, the pin keeps the slot from being freed
+        byte[] loaded = null;
+        try {
+            loaded = pool.load(slot);
+        } finally {
+            synchronized (pool) {
+                loading = false;
+                if (loaded != null) {
+                    pool.freeSlot(slot);
+                    spillSlot = -1;
+                    buffer = loaded;
+                    pool.register(this);
+                } else {
+                    unpin();
+                }
+                pool.notifyAll();
+            }
+        }
+        return loaded;
+    }
+
+    public void unpin() {
+        synchronized (pool) {
+            if (pins > 0) {
+                pins--;
+                if (pins == 0 && freed) {
+                    releaseBuffer(); // freed while pinned
+                }
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        return BlockBufferPool.BLOCK_SIZE;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new ByteArrayInputStream(pin()) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    unpin();
+                }
+                super.close();
+            }
+        };
+    }
+
+    @Override
+    public InputStream getInputStreamUnbuffered() throws IOException {
+        return getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("pooled buckets are read only");
+    }
+
+    @Override
+    public OutputStream getOutputStreamUnbuffered() throws IOException {
+        return getOutputStream();
+    }
+
+    @Override
+    public String getName() {
+        return "PooledBucket";
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public void setReadOnly() {
+        // always read only
+    }
+
+    // the buffer goes back to the pool, so the random access buffer gets a copy
+    @Override
+    public LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+        return new ByteArrayRandomAccessBuffer(toByteArray());
+    }
+
+    @Override
+    public RandomAccessBucket createShadow() {
+        return null;
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // never persistent
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        throw new UnsupportedOperationException("pooled buckets are not persistent");
+    }
+
+    public byte[] toByteArray() throws IOException {
+        byte[] data = pin();
+        try {
+            return data.clone();
+        } finally {
+            unpin();
+        }
+    }
+
+    @Override
+    public void free() {
+        synchronized (pool) {
+            if (!freed) {
+                freed = true;
+                if (pins == 0) {
+                    releaseBuffer();
+                }
+            }
+        }
+    }
+
+    // called holding the lock of the pool
+    private void releaseBuffer() {
+        if (buffer != null) {
+            pool.unregister(this);
+            pool.release(buffer);
+            buffer = null;
+        } else if (spillSlot != -1) {
+            pool.freeSlot(spillSlot);
+            spillSlot = -1;
+        }
+    }
+
+    // called by the pool holding its lock
+    boolean isPinned() {
+        return pins > 0;
+    }
+
+    // called by the pool holding its lock, keeps the buffer until finishSpill
+    byte[] beginSpill() {
+        pins++;
+        return buffer;
+    }
+
+    /**
+     * Called by the pool holding its lock after the buffer was written to the
+     * spill file. The bucket stays in memory if it was pinned meanwhile.
+     *
+     * @param slot slot with the data, -1 if writing failed
+     * @return true if the buffer was returned to the pool
+     */
+    boolean finishSpill(int slot) {
+        pins--;
+        if (freed) {
+            if (slot != -1) {
+                pool.freeSlot(slot);
+            }
+            if (pins == 0) {
+                releaseBuffer();
+                return true;
+            }
+            return false;
+        }
+        if (slot == -1 || pins > 0) {
+            if (slot != -1) {
+                pool.freeSlot(slot);
+            }
+            pool.register(this);
+            return false;
+        }
+
+        spillSlot = slot;
+        byte[] spilledBuffer = buffer;
+        buffer = null;
+        pool.release(spilledBuffer);
+        return true;
+    }
+}
@@ -21,15 +21,23 @@ package keepalive.service.net;
 import freenet.client.FetchException;
 import freenet.client.FetchResult;
 import freenet.keys.FreenetURI;
-import freenet.support.io.ArrayBucket;
+import freenet.support.api.RandomAccessBucket;
 import keepalive.service.reinserter.Reinserter;
 import keepalive.model.Block;
+import keepalive.model.BlockResult;
 
 import java.io.IOException;
+import java.util.EnumSet;
 import java.util.concurrent.Callable;
 
 public class SingleFetch extends SingleJob implements Callable<Boolean> {
 
+    // failures caused by the load of the network, not by missing data
+    // (route not found is the usual result for a block that is gone)
+    private static final EnumSet<FetchException.FetchExceptionMode> OVERLOAD_MODES = EnumSet.of(
+            FetchException.FetchExceptionMode.REJECTED_OVERLOAD,
+            FetchException.FetchExceptionMode.TRANSFER_FAILED);
+
     private final boolean persistenceCheck;
 
     public SingleFetch(Reinserter reinserter, Block block, boolean persistenceCheck) {
@@ -43,6 +51,7 @@ public class SingleFetch extends SingleJob implements Callable<Boolean> {
         Thread.currentThread().setName("KeepAlive SingleFetch");
         FetchResult fetchResult = null;
         boolean fetchSuccessful = false;
+        boolean reserved = false;
 
         try {
 
@@ -52,8 +61,15 @@ public class SingleFetch extends SingleJob implements Callable<Boolean> {
             FreenetURI fetchUri = getUri();
             block.setFetchDone(false);
             block.setFetchSuccessful(false);
+            block.setResult(null);
+
+            // wait for memory for the block data
+            plugin.getBlockBufferPool().awaitCapacity();
+            reserved = true;
 
             // request
+            long requestStart = System.currentTimeMillis();
+            boolean overloaded = false;
             try {
 
                 if (!persistenceCheck) {
@@ -63,21 +79,29 @@ public class SingleFetch extends SingleJob implements Callable<Boolean> {
                 }
 
             } catch (FetchException e) {
-                block.setResultLog("-> fetch error: " + e.getMessage());
+                block.setResult(BlockResult.FETCH_ERROR, e.getMessage());
+                overloaded = OVERLOAD_MODES.contains(e.getMode());
             }
+            plugin.getJobExecutor().getController(JobExecutor.Lane.FETCH)
+                    .onJobFinished(System.currentTimeMillis() - requestStart, overloaded);
 
             if (Thread.currentThread().isInterrupted()) {
                 return false;
             }
 
             // log / success flag
-            if (block.getResultLog() == null) {
+            if (block.getResult() == null) {
                 if (fetchResult == null) {
-                    block.setResultLog("-> fetch failed");
+                    block.setResult(BlockResult.FETCH_FAILED);
                 } else {
-                    block.setBucket(new ArrayBucket(fetchResult.asByteArray()));
+                    RandomAccessBucket previousBucket = block.getBucket();
+                    reserved = false;
+                    block.setBucket(plugin.getBlockBufferPool().copyOf(fetchResult.asBucket(), true));
+                    if (previousBucket != null) {
+                        previousBucket.free();
+                    }
                     block.setFetchSuccessful(true);
-                    block.setResultLog("-> fetch successful");
+                    block.setResult(BlockResult.FETCH_SUCCESSFUL);
                     fetchSuccessful = true;
                 }
             }
@@ -88,7 +112,12 @@ public class SingleFetch extends SingleJob implements Callable<Boolean> {
 
         } catch (IOException e) {
             log("SingleFetch.run(): " + e.getMessage(), 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
+            if (reserved) {
+                plugin.getBlockBufferPool().cancelReservation();
+            }
             if (fetchResult != null && fetchResult.asBucket() != null) {
                 fetchResult.asBucket().free();
             }
@@ -24,12 +24,44 @@ import freenet.client.InsertException;
 import freenet.keys.FreenetURI;
 import keepalive.service.reinserter.Reinserter;
 import keepalive.model.Block;
+import keepalive.model.BlockHistory;
+import keepalive.model.BlockResult;
 import keepalive.model.Segment;
 
+import java.util.EnumSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
 public class SingleInsert extends SingleJob implements Runnable {
 
-    public SingleInsert(Reinserter reinserter, Block block) {
+    // failures caused by the load of the network, not by the block
+    private static final EnumSet<InsertException.InsertExceptionMode> OVERLOAD_MODES = EnumSet.of(
+            InsertException.InsertExceptionMode.REJECTED_OVERLOAD,
+            InsertException.InsertExceptionMode.ROUTE_NOT_FOUND,
+            InsertException.InsertExceptionMode.ROUTE_REALLY_NOT_FOUND);
+
+    // inserts running for any site by routing key, a block shared by sites is inserted once
+    private static final ConcurrentHashMap<String, FutureTask<FreenetURI>> RUNNING_INSERTS = new ConcurrentHashMap<>();
+
+    private final Segment segment;
+    private final boolean checkFirst;
+
+    public SingleInsert(Reinserter reinserter, Segment segment, Block block) {
+        this(reinserter, segment, block, false);
+    }
+
+    /**
+     * @param segment    segment of the block, kept by the job as it may be released by the reinserter meanwhile
+     * @param checkFirst fetch the block first and insert it only if it is not available
+     */
+    public SingleInsert(Reinserter reinserter, Segment segment, Block block, boolean checkFirst) {
         super(reinserter, "insertion", block);
+
+        this.segment = segment;
+        this.checkFirst = checkFirst;
     }
 
     @Override
@@ -47,6 +79,19 @@ public class SingleInsert extends SingleJob implements Runnable {
 
         try {
 
+            // check availability of a block not fetched before
+            if (checkFirst) {
+                SingleFetch singleFetch = new SingleFetch(reinserter, block, true);
+                if (singleFetch.call()) {
+                    block.setResult(BlockResult.STILL_AVAILABLE);
+                    block.setInsertDone(true);
+                    return;
+                }
+                if (!reinserter.isActive() || Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+
             // fetch
             if (block.getBucket() == null) {
                 SingleFetch singleFetch = new SingleFetch(reinserter, block, false);
@@ -56,10 +101,8 @@ public class SingleInsert extends SingleJob implements Runnable {
                 }
             }
 
-            Segment segment = reinserter.getSegments().get(block.getSegmentId());
-
             if (block.getBucket() == null) {
-                block.setResultLog("-> insertion failed: fetch failed");
+                block.setResult(BlockResult.INSERT_FETCH_FAILED);
             } else { // insert
                 if (Thread.currentThread().isInterrupted()) {
                     return;
@@ -86,8 +129,7 @@ public class SingleInsert extends SingleJob implements Runnable {
                     // re-insert top blocks and single key files at very high priority, all others at medium prio.
                     short prio = segment.size() == 1 ? (short) 1 : (short) 3;
 
-                    FreenetURI insertUri = plugin.getFreenetClient()
-                            .insert(insertBlock, null, false, prio, insertContext, fetchUri.getCryptoKey());
+                    FreenetURI insertUri = insertOnce(insertBlock, prio, insertContext, fetchUri);
 
                     // insert finished
                     if (!reinserter.isActive()) {
@@ -97,16 +139,16 @@ public class SingleInsert extends SingleJob implements Runnable {
                     if (insertUri != null) {
                         if (fetchUri.equals(insertUri)) {
                             block.setInsertSuccessful(true);
-                            block.setResultLog("-> inserted: " + insertUri.toString());
+                            block.setResult(BlockResult.INSERTED, insertUri.toString());
                         } else {
-                            block.setResultLog("-> insertion failed - different uri: " + insertUri.toString());
+                            block.setResult(BlockResult.INSERT_DIFFERENT_URI, insertUri.toString());
                         }
                     } else {
-                        block.setResultLog("-> insertion failed");
+                        block.setResult(BlockResult.INSERT_FAILED);
                     }
 
                 } catch (InsertException e) {
-                    block.setResultLog("-> insertion error: " + e.getMessage());
+                    block.setResult(BlockResult.INSERT_ERROR, e.getMessage());
                 }
             }
 
@@ -116,12 +158,59 @@ public class SingleInsert extends SingleJob implements Runnable {
             }
 
             // finish
+            reinserter.registerBlockInsertResult(block);
             block.setInsertDone(true);
 
         } catch (Exception e) {
-            log("SingleInsert.run(): " + e.getMessage(), 0);
+            log("SingleInsert.run(): " + e, 0); // the message alone may be null
         } finally {
             finish();
         }
     }
+
+    // insert or wait for the insert of the same block started by another site
+    private FreenetURI insertOnce(final InsertBlock insertBlock, final short prio, final InsertContext insertContext,
+                                  final FreenetURI fetchUri) throws InsertException, InterruptedException {
+        String routingKey = BlockHistory.getRoutingKey(fetchUri);
+        FutureTask<FreenetURI> insert = new FutureTask<>(new Callable<FreenetURI>() {
+            @Override
+            public FreenetURI call() throws InsertException {
+                long requestStart = System.currentTimeMillis();
+                boolean overloaded = false;
+                try {
+                    return plugin.getFreenetClient()
+                            .insert(insertBlock, null, false, prio, insertContext, fetchUri.getCryptoKey());
+                } catch (InsertException e) {
+                    overloaded = OVERLOAD_MODES.contains(e.getMode());
+                    throw e;
+                } finally {
+                    plugin.getJobExecutor().getController(JobExecutor.Lane.INSERT)
+                            .onJobFinished(System.currentTimeMillis() - requestStart, overloaded);
+                }
+            }
+        });
+
+        FutureTask<FreenetURI> running = RUNNING_INSERTS.putIfAbsent(routingKey, insert);
+        if (running != null) {
+            log("-> inserted by another site right now, waiting for its result", 2);
+        } else {
+            running = insert;
+            try {
+                insert.run();
+            } finally {
+                RUNNING_INSERTS.remove(routingKey, insert);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (CancellationException e) {
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InsertException) {
+                throw (InsertException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
 }
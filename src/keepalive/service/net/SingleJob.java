@@ -44,7 +44,9 @@ public abstract class SingleJob {
     }
 
     FreenetURI getUri() {
-        FreenetURI uri = block.getUri().clone();
+        FreenetURI uri = block.getUri(); // new instance, may be modified
+        String requestLog = "request: " + uri.toString();
+        byte controlFlag = uri.getExtra()[2];
 
         // modify the control flag of the URI to get always the raw data
         uriExtra = uri.getExtra();
@@ -58,9 +60,9 @@ public abstract class SingleJob {
             compressionAlgorithm = "none";
         }
 
-        log("request: " + block.getUri().toString() +
+        log(requestLog +
                 " (crypt=" + uriExtra[1] +
-                ",control=" + block.getUri().getExtra()[2] +
+                ",control=" + controlFlag +
                 ",compress=" + uriExtra[4] + "=" + compressionAlgorithm + ")", 2);
 
         return uri;
@@ -70,12 +72,13 @@ public abstract class SingleJob {
         if (reinserter.isActive() && !reinserter.isInterrupted()) {
             // log
             String firstLog = jobType + ": " + block.getUri();
+            String resultLog = block.getResultLog();
             if (!block.isFetchSuccessful() && !block.isInsertSuccessful()) {
                 firstLog = "<b>" + firstLog + "</b>";
-                block.setResultLog("<b>" + block.getResultLog() + "</b>");
+                resultLog = "<b>" + resultLog + "</b>";
             }
             log(firstLog, 2);
-            log(block.getResultLog(), 2);
+            log(resultLog, 2);
         }
     }
 
@@ -0,0 +1,117 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Temporary file with fixed-size slots for block buffers that do not fit
+ * into the memory budget. Freed slots are reused; the file is deleted on
+ * close and when the plugin starts.
+ */
+class SpillStore {
+
+    private final File file;
+    private final int slotSize;
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private int slots;
+
+    SpillStore(File file, int slotSize) {
+        this.file = file;
+        this.slotSize = slotSize;
+        if (file.exists()) {
+            file.delete(); // left over after a crash
+        }
+    }
+
+    /**
+     * @return a free slot, written with {@link #write(int, byte[])} outside of any lock
+     */
+    synchronized int allocate() throws IOException {
+        if (channel == null) {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            slot = slots++;
+        }
+        return slot;
+    }
+
+    // positional channel access is thread safe, so slots are written and read concurrently
+    void write(int slot, byte[] buffer) throws IOException {
+        FileChannel channel = getChannel();
+        ByteBuffer source = ByteBuffer.wrap(buffer, 0, slotSize);
+        long position = (long) slot * slotSize;
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+
+    void read(int slot, byte[] buffer) throws IOException {
+        FileChannel channel = getChannel();
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, slotSize);
+        long position = (long) slot * slotSize;
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position);
+            if (read < 0) {
+                throw new IOException("spill file too short");
+            }
+            position += read;
+        }
+    }
+
+    synchronized void free(int slot) {
+        freeSlots.push(slot);
+    }
+
+    synchronized int getUsedSlots() {
+        return slots - freeSlots.size();
+    }
+
+    private synchronized FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            throw new IOException("spill file closed");
+        }
+        return channel;
+    }
+
+    synchronized void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+            raf = null;
+            channel = null;
+        }
+        freeSlots.clear();
+        slots = 0;
+        file.delete();
+    }
+}
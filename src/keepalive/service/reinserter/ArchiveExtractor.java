@@ -0,0 +1,127 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads a single entry (usually ".metadata") from a fetched container while
+ * streaming through it once. The archive type is detected from the magic
+ * bytes, so neither the container nor a second attempt is held in memory.
+ */
+class ArchiveExtractor {
+
+    private static final int TAR_HEADER_SIZE = 512;
+    private static final int TAR_MAGIC_OFFSET = 257;
+    private static final byte[] TAR_MAGIC = {'u', 's', 't', 'a', 'r'};
+    private static final byte[] ZIP_MAGIC = {'P', 'K', 3, 4};
+
+    private ArchiveExtractor() {
+    }
+
+    /**
+     * Looks at the first bytes without consuming them.
+     *
+     * @param in stream that supports mark and reset
+     * @return archive type or null if the data is no known archive
+     */
+    static ARCHIVE_TYPE detect(InputStream in) throws IOException {
+        byte[] header = new byte[TAR_HEADER_SIZE];
+        in.mark(TAR_HEADER_SIZE);
+        int length = 0;
+        try {
+            int read;
+            while (length < header.length && (read = in.read(header, length, header.length - length)) > 0) {
+                length += read;
+            }
+        } finally {
+            in.reset();
+        }
+
+        if (startsWith(header, length, 0, ZIP_MAGIC)) {
+            return ARCHIVE_TYPE.ZIP;
+        }
+        if (startsWith(header, length, TAR_MAGIC_OFFSET, TAR_MAGIC)) {
+            return ARCHIVE_TYPE.TAR;
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] data, int length, int offset, byte[] magic) {
+        if (length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return content of the entry or null if the archive has no such entry
+     */
+    static byte[] extract(InputStream in, ARCHIVE_TYPE archiveType, String entryName) throws IOException {
+        if (archiveType == ARCHIVE_TYPE.TAR) {
+            TarInputStream tarStream = new TarInputStream(in);
+            TarEntry entry;
+            while ((entry = tarStream.getNextEntry()) != null) {
+                if (entry.getName().equals(entryName)) {
+                    return read(tarStream, entry.getSize());
+                }
+            }
+        } else if (archiveType == ARCHIVE_TYPE.ZIP) {
+            ZipInputStream zipStream = new ZipInputStream(in);
+            ZipEntry entry;
+            while ((entry = zipStream.getNextEntry()) != null) {
+                if (entry.getName().equals(entryName)) {
+                    return read(zipStream, entry.getSize());
+                }
+            }
+        }
+        return null;
+    }
+
+    // read the current entry (its size is -1 if unknown)
+    private static byte[] read(InputStream in, long size) throws IOException {
+        if (size >= 0 && size <= Integer.MAX_VALUE) {
+            byte[] data = new byte[(int) size];
+            new DataInputStream(in).readFully(data);
+            return data;
+        }
+
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        byte[] buf = new byte[32768];
+        int bytes;
+        while ((bytes = in.read(buf)) > 0) {
+            outStream.write(buf, 0, bytes);
+        }
+        return outStream.toByteArray();
+    }
+}
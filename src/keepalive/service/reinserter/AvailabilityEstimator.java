@@ -0,0 +1,128 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimates the block availability of the files of a site from all fetch
+ * results of the current pass. Results are pooled per file (all segments of
+ * a splitfile) and for the whole site; the site estimate, seeded with the
+ * availability of the previous pass, is the prior of each file (beta-binomial
+ * model). Segments of a file that is clearly healthy need only a few probes.
+ */
+class AvailabilityEstimator {
+
+    // weight of the previous pass in the site estimate (in blocks)
+    private static final double SITE_PRIOR_WEIGHT = 20;
+
+    // weight of the site estimate in the file estimate (in blocks)
+    private static final double FILE_PRIOR_WEIGHT = 6;
+
+    private final double previousAvailability;
+    private final Map<Integer, int[]> files = new HashMap<>();
+    private int siteSuccesses;
+    private int siteFailures;
+
+    /**
+     * @param previousAvailability availability of the previous pass (0..1), -1 if unknown
+     */
+    AvailabilityEstimator(double previousAvailability) {
+        this.previousAvailability = previousAvailability;
+    }
+
+    synchronized void add(int fileId, boolean available) {
+        int[] counts = files.get(fileId);
+        if (counts == null) {
+            counts = new int[2];
+            files.put(fileId, counts);
+        }
+
+        if (available) {
+            counts[0]++;
+            siteSuccesses++;
+        } else {
+            counts[1]++;
+            siteFailures++;
+        }
+    }
+
+    synchronized double getSiteEstimate() {
+        if (previousAvailability < 0) {
+            return (siteSuccesses + 1.0) / (siteSuccesses + siteFailures + 2.0);
+        }
+        return (previousAvailability * SITE_PRIOR_WEIGHT + siteSuccesses) /
+                (SITE_PRIOR_WEIGHT + siteSuccesses + siteFailures);
+    }
+
+    /**
+     * @return mean of the availability of a file (0..1)
+     */
+    synchronized double getEstimate(int fileId) {
+        double[] beta = getBeta(fileId);
+        return beta[0] / (beta[0] + beta[1]);
+    }
+
+    /**
+     * @return probability that the availability of a file is at least the tolerance
+     */
+    synchronized double getProbabilityAvailable(int fileId, double tolerance) {
+        double[] beta = getBeta(fileId);
+        double n = beta[0] + beta[1];
+        double mean = beta[0] / n;
+        double deviation = Math.sqrt(beta[0] * beta[1] / (n * n * (n + 1)));
+        return normalDistribution((mean - tolerance) / Math.max(deviation, 1e-6));
+    }
+
+    /**
+     * @return probability that the estimate is on the right side of the tolerance (0.5..1)
+     */
+    double getConfidence(int fileId, double tolerance) {
+        double available = getProbabilityAvailable(fileId, tolerance);
+        return Math.max(available, 1 - available);
+    }
+
+    /**
+     * @return prior log odds of the file being available for {@link AvailabilityTest}
+     */
+    double getPriorLogOdds(int fileId, double tolerance) {
+        double available = Math.min(0.999, Math.max(0.001, getProbabilityAvailable(fileId, tolerance)));
+        return Math.log(available / (1 - available));
+    }
+
+    private double[] getBeta(int fileId) {
+        double siteEstimate = getSiteEstimate();
+        int[] counts = files.get(fileId);
+        double successes = counts != null ? counts[0] : 0;
+        double failures = counts != null ? counts[1] : 0;
+        return new double[]{
+                siteEstimate * FILE_PRIOR_WEIGHT + successes,
+                (1 - siteEstimate) * FILE_PRIOR_WEIGHT + failures};
+    }
+
+    // cumulative standard normal distribution (Abramowitz and Stegun 7.1.26)
+    private static double normalDistribution(double x) {
+        double z = Math.abs(x) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * z);
+        double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 +
+                t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-z * z);
+        return x >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+/**
+ * Sequential probability ratio test (SPRT) whether the availability of a
+ * segment is above the tolerance. Each fetched sample moves the log-likelihood
+ * ratio between "availability = tolerance + margin" and "availability =
+ * tolerance - margin"; sampling stops as soon as one of the bounds is reached.
+ * If the maximum number of samples is reached first, the estimated
+ * availability decides. A prior (e.g. from other segments of the same file)
+ * moves the starting point, but never decides without a sample.
+ */
+class AvailabilityTest {
+
+    enum Decision {
+        CONTINUE, AVAILABLE, NOT_AVAILABLE
+    }
+
+    // half width of the indifference region around the tolerance
+    private static final double MARGIN = 0.15;
+
+    // probability of a wrong decision (both directions)
+    private static final double ERROR = 0.05;
+
+    private static final double UPPER_BOUND = Math.log((1 - ERROR) / ERROR);
+    private static final double LOWER_BOUND = Math.log(ERROR / (1 - ERROR));
+
+    // share of the distance to a bound a prior may cover
+    private static final double MAX_PRIOR = 0.8;
+
+    private final double tolerance;
+    private final int maxSamples;
+    private final double successWeight;
+    private final double failureWeight;
+
+    private double logLikelihoodRatio;
+    private int successes;
+    private int failures;
+
+    /**
+     * @param tolerance  required availability (0..1)
+     * @param maxSamples maximal number of samples
+     */
+    AvailabilityTest(double tolerance, int maxSamples) {
+        this(tolerance, maxSamples, 0);
+    }
+
+    /**
+     * @param tolerance    required availability (0..1)
+     * @param maxSamples   maximal number of samples
+     * @param priorLogOdds prior log odds of the segment being available
+     */
+    AvailabilityTest(double tolerance, int maxSamples, double priorLogOdds) {
+        this.tolerance = tolerance;
+        this.maxSamples = maxSamples;
+        logLikelihoodRatio = Math.max(LOWER_BOUND * MAX_PRIOR, Math.min(UPPER_BOUND * MAX_PRIOR, priorLogOdds));
+
+        double available = Math.min(0.99, tolerance + MARGIN);
+        double notAvailable = Math.max(0.01, Math.min(available - 0.01, tolerance - MARGIN));
+        successWeight = Math.log(available / notAvailable);
+        failureWeight = Math.log((1 - available) / (1 - notAvailable));
+    }
+
+    void add(boolean available) {
+        if (available) {
+            successes++;
+            logLikelihoodRatio += successWeight;
+        } else {
+            failures++;
+            logLikelihoodRatio += failureWeight;
+        }
+    }
+
+    Decision getDecision() {
+        if (tolerance <= 0) {
+            return Decision.AVAILABLE;
+        }
+        if (getSamples() == 0) {
+            return Decision.CONTINUE;
+        }
+        if (logLikelihoodRatio >= UPPER_BOUND) {
+            return Decision.AVAILABLE;
+        }
+        if (logLikelihoodRatio <= LOWER_BOUND) {
+            return Decision.NOT_AVAILABLE;
+        }
+        if (getSamples() >= maxSamples) {
+            return getAvailability() >= tolerance ? Decision.AVAILABLE : Decision.NOT_AVAILABLE;
+        }
+        return Decision.CONTINUE;
+    }
+
+    int getMaxSamples() {
+        return maxSamples;
+    }
+
+    int getSamples() {
+        return successes + failures;
+    }
+
+    double getAvailability() {
+        return getSamples() == 0 ? 0 : (double) successes / getSamples();
+    }
+}
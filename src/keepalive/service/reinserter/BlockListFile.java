@@ -0,0 +1,284 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import freenet.keys.FreenetURI;
+import keepalive.model.Block;
+import keepalive.model.BlockHistory;
+import keepalive.model.BlockIndex;
+import keepalive.model.BlockTable;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Binary block list of a site (keys&lt;id&gt;.bin). After a header and a table
+ * with the position and size of every segment follow records of fixed width
+ * (routing key, crypto key, extra bytes, block id, file id, flags) ordered by
+ * segment and block id, and at the end the document names of the few keys
+ * that have one. The file is memory-mapped and a segment is decoded only
+ * when it is read.
+ */
+class BlockListFile implements Closeable {
+
+    private static final int MAGIC = 0x4b414c42; // "KALB"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 24;
+    private static final int SEGMENT_ENTRY_SIZE = 12;
+    private static final int RECORD_SIZE = BlockTable.KEY_LENGTH + 13;
+
+    private static final int FLAG_DATA_BLOCK = 1;
+    private static final int NO_NAME = -1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+    private final ByteBuffer buffer;
+    private final int segmentCount;
+    private final int blocksCount;
+    private final int recordsOffset;
+    private final long namesOffset;
+
+    BlockListFile(File blockList) throws IOException {
+        file = new RandomAccessFile(blockList, "r");
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("no block list: " + blockList.getName());
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("unknown version of the block list: " + buffer.getInt(4));
+            }
+            segmentCount = buffer.getInt(8);
+            blocksCount = buffer.getInt(12);
+            namesOffset = buffer.getLong(16);
+            recordsOffset = HEADER_SIZE + segmentCount * SEGMENT_ENTRY_SIZE;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    int getMaxSegmentId() {
+        return segmentCount - 1;
+    }
+
+    int getBlocksCount() {
+        return blocksCount;
+    }
+
+    int getSegmentSize(int segmentId) {
+        return segmentId < segmentCount ? buffer.getInt(HEADER_SIZE + segmentId * SEGMENT_ENTRY_SIZE + 4) : 0;
+    }
+
+    int getDataBlocksCount(int segmentId) {
+        return segmentId < segmentCount ? buffer.getInt(HEADER_SIZE + segmentId * SEGMENT_ENTRY_SIZE + 8) : 0;
+    }
+
+    /**
+     * @return blocks of the segment ordered by block id (new instances on every call)
+     */
+    Block[] readSegment(int segmentId) throws IOException {
+        ByteBuffer records = buffer.duplicate();
+        int first = records.getInt(HEADER_SIZE + segmentId * SEGMENT_ENTRY_SIZE);
+        Block[] blocks = new Block[getSegmentSize(segmentId)];
+        records.position(recordsOffset + first * RECORD_SIZE);
+        for (int i = 0; i < blocks.length; i++) {
+            byte[] key = new byte[BlockTable.KEY_LENGTH];
+            records.get(key);
+            int blockId = records.getInt();
+            int fileId = records.getInt();
+            byte flags = records.get();
+            int nameOffset = records.getInt();
+            blocks[i] = new Block(key, readName(nameOffset), segmentId, blockId, (flags & FLAG_DATA_BLOCK) != 0, fileId);
+        }
+        return blocks;
+    }
+
+    /**
+     * Reads the packed key of the i-th block of a segment without decoding the block.
+     *
+     * @return block id of the block
+     */
+    int readKey(int segmentId, int i, byte[] key) {
+        ByteBuffer records = buffer.duplicate();
+        int first = records.getInt(HEADER_SIZE + segmentId * SEGMENT_ENTRY_SIZE);
+        records.position(recordsOffset + (first + i) * RECORD_SIZE);
+        records.get(key);
+        return records.getInt();
+    }
+
+    private String readName(int nameOffset) throws IOException {
+        if (nameOffset == NO_NAME) {
+            return null;
+        }
+        ByteBuffer names = buffer.duplicate();
+        names.position((int) (namesOffset + nameOffset));
+        byte[] name = new byte[names.getShort() & 0xffff];
+        names.get(name);
+        return new String(name, UTF8);
+    }
+
+    /**
+     * @return routing keys (hex) of all blocks, read while iterating
+     */
+    Collection<String> getRoutingKeys() {
+        return new AbstractCollection<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    private final ByteBuffer records = buffer.duplicate();
+                    private int record;
+
+                    @Override
+                    public boolean hasNext() {
+                        return record < blocksCount;
+                    }
+
+                    @Override
+                    public String next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        byte[] routingKey = new byte[BlockTable.ROUTING_KEY_LENGTH];
+                        records.position(recordsOffset + record++ * RECORD_SIZE);
+                        records.get(routingKey);
+                        return BlockHistory.getRoutingKey(routingKey);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return blocksCount;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Writes the blocks to a temporary file that replaces the block list when complete.
+     */
+    static void write(File blockList, BlockTable blocks) throws IOException {
+        BlockIndex blockIndex = new BlockIndex(blocks);
+        int segmentCount = blockIndex.getMaxSegmentId() + 1;
+        long namesOffset = HEADER_SIZE + (long) segmentCount * SEGMENT_ENTRY_SIZE + (long) blocks.size() * RECORD_SIZE;
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        DataOutputStream namesStream = new DataOutputStream(names);
+
+        File tempFile = new File(blockList.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(segmentCount);
+            out.writeInt(blocks.size());
+            out.writeLong(namesOffset);
+
+            int first = 0;
+            for (int segmentId = 0; segmentId < segmentCount; segmentId++) {
+                out.writeInt(first);
+                out.writeInt(blockIndex.getSegmentSize(segmentId));
+                out.writeInt(blockIndex.getDataBlocksCount(segmentId));
+                first += blockIndex.getSegmentSize(segmentId);
+            }
+
+            for (int segmentId = 0; segmentId < segmentCount; segmentId++) {
+                for (int i = 0; i < blockIndex.getSegmentSize(segmentId); i++) {
+                    int record = blockIndex.getRecord(segmentId, i);
+                    out.write(blocks.getKey(record));
+                    out.writeInt(blocks.getBlockId(record));
+                    out.writeInt(blocks.getFileId(record));
+                    out.writeByte(blocks.isDataBlock(record) ? FLAG_DATA_BLOCK : 0);
+                    String docName = blocks.getDocName(record);
+                    if (docName != null) {
+                        out.writeInt(names.size());
+                        byte[] name = docName.getBytes(UTF8);
+                        namesStream.writeShort(Math.min(name.length, 0xffff));
+                        namesStream.write(name, 0, Math.min(name.length, 0xffff));
+                    } else {
+                        out.writeInt(NO_NAME);
+                    }
+                }
+            }
+
+            names.writeTo(out);
+        }
+
+        // the old list stays complete until it is replaced
+        try {
+            Files.move(tempFile.toPath(), blockList.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), blockList.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads a block list of the text format of older versions (uri#segment#block#d|c[#file]).
+     */
+    static BlockTable readText(File blockList) throws IOException {
+        BlockTable blocks = new BlockTable();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(blockList), UTF8))) {
+            String values;
+            while ((values = reader.readLine()) != null) {
+                if (values.isEmpty()) {
+                    continue;
+                }
+                String[] aValues = values.split("#");
+                FreenetURI uri = new FreenetURI(aValues[0]);
+                int segmentId = Integer.parseInt(aValues[1]);
+                int blockId = Integer.parseInt(aValues[2]);
+                boolean isDataBlock = aValues[3].equals("d");
+                // lists of older versions have no file id, then every segment counts as a file
+                int fileId = aValues.length > 4 ? Integer.parseInt(aValues[4]) : segmentId;
+                blocks.add(uri, segmentId, blockId, isDataBlock, fileId);
+            }
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import keepalive.model.Block;
+import keepalive.model.Segment;
+
+import java.util.Random;
+
+/**
+ * Draws the blocks of a segment in random order without repetition. Data and
+ * check blocks are drawn in proportion to their number, so every prefix of
+ * the sample is spread evenly over both kinds.
+ */
+class BlockSampler {
+
+    private final Segment segment;
+    private final int[] dataOrder;
+    private final int[] checkOrder;
+    private int dataDrawn;
+    private int checkDrawn;
+
+    BlockSampler(Segment segment, Random random) {
+        this.segment = segment;
+        dataOrder = shuffledIndices(segment.dataSize(), random);
+        checkOrder = shuffledIndices(segment.checkSize(), random);
+    }
+
+    private static int[] shuffledIndices(int size, Random random) {
+        int[] indices = new int[size];
+        for (int i = 0; i < size; i++) {
+            indices[i] = i;
+        }
+
+        // Fisher-Yates
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = indices[i];
+            indices[i] = indices[j];
+            indices[j] = swap;
+        }
+        return indices;
+    }
+
+    boolean hasNext() {
+        return dataDrawn < dataOrder.length || checkDrawn < checkOrder.length;
+    }
+
+    Block next() {
+        // draw from the kind that is behind its share
+        boolean drawData;
+        if (dataDrawn == dataOrder.length) {
+            drawData = false;
+        } else if (checkDrawn == checkOrder.length) {
+            drawData = true;
+        } else {
+            drawData = (long) dataDrawn * checkOrder.length <= (long) checkDrawn * dataOrder.length;
+        }
+
+        if (drawData) {
+            return segment.getDataBlock(dataOrder[dataDrawn++]);
+        } else {
+            return segment.getCheckBlock(checkOrder[checkDrawn++]);
+        }
+    }
+}
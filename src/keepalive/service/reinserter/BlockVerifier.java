@@ -0,0 +1,111 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.FreenetURI;
+import keepalive.model.Block;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes healed blocks locally and compares the resulting CHK with the key
+ * of the block, so a wrongly reconstructed block is never inserted. Runs on
+ * the {@link HealExecutor} and splits the blocks over its threads.
+ */
+class BlockVerifier extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    // blocks encoded by one task without splitting further
+    private static final int BATCH_SIZE = 8;
+
+    private final Block[] blocks;
+    private final byte[][] data;
+    private final int from;
+    private final int to;
+    private final AtomicInteger mismatches;
+
+    /**
+     * @param blocks blocks to verify
+     * @param data   healed data of the blocks (same order)
+     */
+    BlockVerifier(Block[] blocks, byte[][] data) {
+        this(blocks, data, 0, blocks.length, new AtomicInteger());
+    }
+
+    private BlockVerifier(Block[] blocks, byte[][] data, int from, int to, AtomicInteger mismatches) {
+        this.blocks = blocks;
+        this.data = data;
+        this.from = from;
+        this.to = to;
+        this.mismatches = mismatches;
+    }
+
+    /**
+     * @return number of blocks that do not match their key (marked as not healable)
+     */
+    int verify() {
+        if (inForkJoinPool()) {
+            invoke();
+        } else {
+            compute();
+        }
+        return mismatches.get();
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= BATCH_SIZE || !inForkJoinPool()) {
+            for (int i = from; i < to; i++) {
+                if (!matches(blocks[i].getUri(), data[i])) {
+                    blocks[i].setHealable(false);
+                    mismatches.incrementAndGet();
+                }
+            }
+        } else {
+            int middle = (from + to) >>> 1;
+            invokeAll(new BlockVerifier(blocks, data, from, middle, mismatches),
+                    new BlockVerifier(blocks, data, middle, to, mismatches));
+        }
+    }
+
+    /**
+     * Encodes the data like the node does for a splitfile block (same crypto
+     * algorithm, no compression). Compressed blocks cannot be encoded the same
+     * way locally and are taken as valid.
+     */
+    static boolean matches(FreenetURI uri, byte[] data) {
+        byte[] extra = uri.getExtra();
+        if (extra[4] >= 0 || data.length != CHKBlock.DATA_LENGTH) {
+            return true;
+        }
+
+        try {
+            ClientCHKBlock chkBlock = ClientCHKBlock.encodeSplitfileBlock(data, uri.getCryptoKey(), extra[1]);
+            return Arrays.equals(chkBlock.getClientKey().getRoutingKey(), uri.getRoutingKey());
+        } catch (CHKEncodeException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import keepalive.model.BlockIndex;
+import keepalive.model.BlockTable;
+
+import java.util.Arrays;
+
+/**
+ * Matches the segments of a new block list (e.g. of a new USK edition) with
+ * the segments of the previous one. A segment is unchanged if it consists of
+ * the same blocks in the same order, which is the case for every file whose
+ * CHK did not change. Unchanged segments that were verified in the running
+ * pass, or in the last pass if it is finished, keep their statistics and are
+ * not probed again. Only the pass right after a new edition is restricted to
+ * the new content, the passes after it cover all segments again.
+ */
+class EditionDiff {
+
+    private final int[] previousSegmentIds;
+    private final int previousLastSegment;
+    private int unchangedCount;
+
+    /**
+     * @param previousList        previous block list, read segment by segment
+     * @param blockIndex          blocks of the new block list
+     * @param previousLastSegment last segment of the previous list finished in the running or last pass
+     */
+    EditionDiff(BlockListFile previousList, BlockIndex blockIndex, int previousLastSegment) {
+        this.previousLastSegment = previousLastSegment;
+
+        BlockTable blocks = blockIndex.getTable();
+        previousSegmentIds = new int[blockIndex.getMaxSegmentId() + 1];
+        Arrays.fill(previousSegmentIds, -1);
+        byte[] key = new byte[BlockTable.KEY_LENGTH];
+        for (int previousSegmentId = 0; previousSegmentId <= previousList.getMaxSegmentId(); previousSegmentId++) {
+            int previousSize = previousList.getSegmentSize(previousSegmentId);
+            int segmentId = -1;
+            for (int i = 0; i < previousSize; i++) {
+                int blockId = previousList.readKey(previousSegmentId, i, key);
+                int record = blocks.indexOf(key, 0);
+                if (record == -1 || blocks.getBlockId(record) != blockId ||
+                        (i > 0 && blocks.getSegmentId(record) != segmentId)) {
+                    segmentId = -1;
+                    break;
+                }
+                segmentId = blocks.getSegmentId(record);
+            }
+
+            if (segmentId != -1 && blockIndex.getSegmentSize(segmentId) == previousSize &&
+                    previousSegmentIds[segmentId] == -1) {
+                previousSegmentIds[segmentId] = previousSegmentId;
+                unchangedCount++;
+            }
+        }
+    }
+
+    /**
+     * @return id of the same segment in the previous list or -1 if the segment is new
+     */
+    int getPreviousSegmentId(int segmentId) {
+        return segmentId < previousSegmentIds.length ? previousSegmentIds[segmentId] : -1;
+    }
+
+    /**
+     * @return id of the same segment in the previous list if it was finished in
+     * the running or the last finished pass, otherwise -1
+     */
+    int getVerifiedSegmentId(int segmentId) {
+        int previousSegmentId = getPreviousSegmentId(segmentId);
+        return previousSegmentId <= previousLastSegment ? previousSegmentId : -1;
+    }
+
+    int getUnchangedCount() {
+        return unchangedCount;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plugin-wide pool for the CPU-bound healing (FEC decode and encode) of
+ * segments, sized to the number of cores. Reinserters submit a segment and
+ * go on fetching the next ones while it is healed.
+ */
+public class HealExecutor {
+
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong queueTime = new AtomicLong();
+    private final AtomicLong healTime = new AtomicLong();
+
+    <T> Future<T> submit(Callable<T> task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * @param queued milliseconds between submitting and starting a heal
+     * @param healed milliseconds of decoding and encoding
+     */
+    void registerHeal(long queued, long healed) {
+        completed.incrementAndGet();
+        queueTime.addAndGet(queued);
+        healTime.addAndGet(healed);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public int getActiveCount() {
+        return pool.getActiveThreadCount();
+    }
+
+    public long getQueuedCount() {
+        return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getAverageQueueTime() {
+        long count = completed.get();
+        return count > 0 ? queueTime.get() / count : 0;
+    }
+
+    public long getAverageHealTime() {
+        long count = completed.get();
+        return count > 0 ? healTime.get() / count : 0;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import keepalive.model.Block;
+import keepalive.model.BlockHistory;
+import keepalive.model.Segment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses the blocks of a healed segment that are reinserted. Instead of all
+ * missing blocks only as many are inserted as needed to lift the segment a
+ * margin above the tolerance (and the FEC threshold). Data blocks come first,
+ * then blocks that failed most often in earlier passes. If the segment decays
+ * further, a later pass finds it below the tolerance again and tops it up.
+ */
+class HealPolicy {
+
+    // data blocks first, then blocks failing for the longest time
+    private static final Comparator<Block> BY_PRIORITY = new Comparator<Block>() {
+        @Override
+        public int compare(Block block1, Block block2) {
+            if (block1.isDataBlock() != block2.isDataBlock()) {
+                return block1.isDataBlock() ? -1 : 1;
+            }
+            int failures = Integer.compare(getFailures(block2), getFailures(block1));
+            return failures != 0 ? failures : Integer.compare(block1.getId(), block2.getId());
+        }
+    };
+
+    private final double tolerance;
+    private final double margin;
+
+    /**
+     * @param tolerance required availability (0..1)
+     * @param margin    availability to reach above the tolerance (0..1)
+     */
+    HealPolicy(double tolerance, double margin) {
+        this.tolerance = tolerance;
+        this.margin = margin;
+    }
+
+    private static int getFailures(Block block) {
+        BlockHistory history = block.getHistory();
+        return history != null ? history.getFailures() : 0;
+    }
+
+    /**
+     * @return number of blocks that should be available after the healing
+     */
+    int getTarget(Segment segment) {
+        double threshold = Math.max(tolerance, (double) segment.dataSize() / segment.size());
+        return Math.min(segment.size(), (int) Math.ceil(segment.size() * (threshold + margin) - 1e-9));
+    }
+
+    /**
+     * @return blocks to reinsert in order of priority; blocks not fetched yet are
+     * only chosen if there are not enough missing blocks and have to be checked first
+     */
+    List<Block> select(Segment segment) {
+        int available = 0;
+        List<Block> missing = new ArrayList<>();
+        List<Block> unknown = new ArrayList<>();
+        for (int i = 0; i < segment.size(); i++) {
+            Block block = segment.getBlock(i);
+            if (block.isFetchSuccessful() || block.isInsertSuccessful()) {
+                available++;
+            } else if (!block.isHealable()) {
+                continue;
+            } else if (block.isFetchInProgress()) {
+                unknown.add(block);
+            } else {
+                missing.add(block);
+            }
+        }
+        Collections.sort(missing, BY_PRIORITY);
+        Collections.sort(unknown, BY_PRIORITY);
+
+        int needed = Math.max(0, getTarget(segment) - available);
+        List<Block> selected = new ArrayList<>(missing.subList(0, Math.min(needed, missing.size())));
+        needed -= selected.size();
+        selected.addAll(unknown.subList(0, Math.min(needed, unknown.size())));
+        return selected;
+    }
+}
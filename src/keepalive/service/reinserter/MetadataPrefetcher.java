@@ -0,0 +1,356 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.FetchException;
+import freenet.client.FetchResult;
+import freenet.client.Metadata;
+import freenet.client.MetadataParseException;
+import freenet.client.MetadataUnresolvedException;
+import freenet.keys.CHKBlock;
+import freenet.keys.FreenetURI;
+import freenet.support.HexUtil;
+import keepalive.model.CachedMetadata;
+import keepalive.repository.BlockRepository;
+import keepalive.repository.MetadataRepository;
+import keepalive.service.net.Client;
+import keepalive.service.net.FetchFailedException;
+import keepalive.service.net.JobExecutor;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the manifests, archives and splitfile metadata of a site ahead
+ * while the reinserter parses the metadata tree in its usual order. The
+ * fetches run on the shared fetch lane of the {@link JobExecutor}, so they
+ * count against the same limit as the block fetches of all sites. Fetched
+ * metadata is scanned for further fetches on the reinserter thread, and only
+ * a bounded number of fetches is submitted ahead and kept until the parser
+ * takes them, so memory does not grow with the size of the site. The
+ * reinserter only waits for the results it needs next, so segment and
+ * block ids are assigned exactly as before.
+ */
+class MetadataPrefetcher {
+
+    // fetches found by scanning the metadata that wait for a free place ahead
+    private static final int MAX_PENDING = 1000;
+
+    private final Reinserter reinserter;
+    private final JobExecutor executor;
+    private final int maxAhead;
+
+    // all of the following is used by the reinserter thread only
+    private final Map<Object, MetadataFetch> prefetched = new HashMap<>(); // submitted, not taken yet
+    private final Map<Future<Metadata>, MetadataFetch> running = new HashMap<>();
+    private final BlockingQueue<Future<Metadata>> completions = new LinkedBlockingQueue<>();
+    private final ArrayDeque<MetadataFetch> pending = new ArrayDeque<>();
+
+    /**
+     * @param maxAhead maximal number of metadata fetches submitted before the parser needs them
+     */
+    MetadataPrefetcher(Reinserter reinserter, int maxAhead) {
+        this.reinserter = reinserter;
+        this.executor = reinserter.getPlugin().getJobExecutor();
+        this.maxAhead = Math.max(1, maxAhead);
+    }
+
+    /**
+     * @return metadata of the document at the uri (null if it has none)
+     */
+    Metadata getManifest(FreenetURI uri)
+            throws FetchFailedException, FetchException, MetadataParseException, IOException {
+        return get(manifestFetch(uri));
+    }
+
+    /**
+     * @return metadata of the manifest inside the archive at the uri
+     */
+    Metadata getArchiveManifest(FreenetURI uri, ARCHIVE_TYPE archiveType, String manifestName)
+            throws FetchFailedException, FetchException, MetadataParseException, IOException {
+        return get(archiveManifestFetch(uri, archiveType, manifestName));
+    }
+
+    /**
+     * @return metadata stored in the (not simple) splitfile
+     */
+    Metadata getSplitfileMetadata(Metadata metadata)
+            throws FetchFailedException, FetchException, MetadataParseException, IOException {
+        return get(splitfileMetadataFetch(metadata));
+    }
+
+    void shutdown() {
+        pending.clear();
+        prefetched.clear();
+        executor.cancel(new ArrayList<>(running.keySet()));
+        running.clear();
+        completions.clear();
+    }
+
+    private MetadataFetch manifestFetch(final FreenetURI uri) {
+        final String key = "manifest:" + Client.normalizeUri(uri);
+        return new MetadataFetch(key, uri) {
+            @Override
+            String getCacheKey() {
+                return uri.isCHK() ? key : null;
+            }
+
+            @Override
+            Metadata fetch() throws Exception {
+                FetchResult fetchResult = Client.fetch(uri, reinserter.getPlugin().getFreenetClient());
+
+                // keep single blocks to be able to insert them again (larger data does not fit anyway)
+                if (fetchResult.size() <= CHKBlock.DATA_LENGTH) {
+                    BlockRepository.getInstance(reinserter.getPlugin())
+                            .saveOrUpdate(uri.toString(), fetchResult.asByteArray());
+                }
+                return reinserter.fetchManifest(fetchResult.asBucket(), null, null);
+            }
+        };
+    }
+
+    private MetadataFetch archiveManifestFetch(final FreenetURI uri, final ARCHIVE_TYPE archiveType,
+                                               final String manifestName) {
+        final String key = "archive:" + Client.normalizeUri(uri) + "#" + archiveType + "#" + manifestName;
+        return new MetadataFetch(key, uri) {
+            @Override
+            String getCacheKey() {
+                return uri.isCHK() ? key : null;
+            }
+
+            @Override
+            Metadata fetch() throws Exception {
+                return reinserter.fetchManifest(uri, archiveType, manifestName);
+            }
+        };
+    }
+
+    private MetadataFetch splitfileMetadataFetch(final Metadata metadata) {
+        // the metadata object itself is the key (the reinserter parses the same instance)
+        return new MetadataFetch(metadata, null) {
+            @Override
+            String getCacheKey() throws Exception {
+                // the metadata of a splitfile is content-addressed by its segment keys
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(metadata.writeToByteArray());
+                return "splitfile:" + HexUtil.bytesToHex(hash);
+            }
+
+            @Override
+            Metadata fetch() throws Exception {
+                return reinserter.fetchSplitfileMetadata((Metadata) metadata.clone());
+            }
+        };
+    }
+
+    // waits for the fetch (submitted now if it was not prefetched) and prefetches meanwhile
+    private Metadata get(MetadataFetch request)
+            throws FetchFailedException, FetchException, MetadataParseException, IOException {
+        try {
+            MetadataFetch fetch = prefetched.remove(request.key);
+            if (fetch == null) {
+                fetch = request;
+                submit(fetch);
+            }
+            while (true) {
+                Future<Metadata> finished;
+                while ((finished = completions.poll()) != null) {
+                    onFinished(finished);
+                }
+                prefetch();
+                if (fetch.future.isDone()) {
+                    return fetch.future.get();
+                }
+                if (reinserter.isInterrupted()) {
+                    return null;
+                }
+                finished = completions.poll(1, TimeUnit.SECONDS);
+                if (finished != null) {
+                    onFinished(finished);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FetchFailedException) {
+                throw (FetchFailedException) cause;
+            }
+            if (cause instanceof FetchException) {
+                throw (FetchException) cause;
+            }
+            if (cause instanceof MetadataParseException) {
+                throw (MetadataParseException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void submit(MetadataFetch fetch) throws InterruptedException {
+        fetch.future = executor.submit(JobExecutor.Lane.FETCH, fetch, completions);
+        running.put(fetch.future, fetch);
+    }
+
+    // submits pending fetches while there is place ahead of the parser
+    private void prefetch() throws InterruptedException {
+        while (!pending.isEmpty() && running.size() < maxAhead && prefetched.size() < maxAhead) {
+            MetadataFetch fetch = pending.poll();
+            if (!prefetched.containsKey(fetch.key)) {
+                submit(fetch);
+                prefetched.put(fetch.key, fetch);
+            }
+        }
+    }
+
+    private void onFinished(Future<Metadata> future) {
+        MetadataFetch fetch = running.remove(future);
+        try {
+            Metadata metadata = future.get();
+            if (fetch != null && metadata != null) {
+                expand(fetch.uri, metadata);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException e) {
+            // reported when the parser takes the result
+        }
+    }
+
+    // queue the fetches the reinserter will need when it parses this metadata
+    private void expand(FreenetURI uri, Metadata metadata) {
+        if (pending.size() >= MAX_PENDING) {
+            return; // fetched when the parser gets there
+        }
+
+        if (metadata.isSimpleManifest()) {
+            HashMap<String, Metadata> targetList;
+            try {
+                targetList = metadata.getDocuments();
+            } catch (Exception e) {
+                return;
+            }
+            if (targetList != null) {
+                for (Metadata target : targetList.values()) {
+                    expand(uri, target);
+                }
+            }
+        } else if (metadata.isArchiveMetadataRedirect()) {
+            if (uri != null) {
+                pending.add(archiveManifestFetch(uri, metadata.getArchiveType(), metadata.getArchiveInternalName()));
+            }
+        } else if (metadata.isSingleFileRedirect()) {
+            FreenetURI targetUri = metadata.getSingleTarget();
+            if (targetUri != null) {
+                pending.add(manifestFetch(targetUri));
+            }
+        } else if (metadata.isSplitfile() && !metadata.isSimpleSplitfile()) {
+            pending.add(splitfileMetadataFetch(metadata));
+        }
+    }
+
+    private abstract class MetadataFetch implements Callable<Metadata> {
+
+        private final Object key;
+        private final FreenetURI uri;
+        private Future<Metadata> future;
+
+        MetadataFetch(Object key, FreenetURI uri) {
+            this.key = key;
+            this.uri = uri;
+        }
+
+        abstract Metadata fetch() throws Exception;
+
+        /**
+         * @return key of the metadata in the cache, null if it may change
+         */
+        String getCacheKey() throws Exception {
+            return null;
+        }
+
+        @Override
+        public Metadata call() throws Exception {
+            if (reinserter.isInterrupted()) {
+                return null;
+            }
+            return fetchCached(this);
+        }
+    }
+
+    private Metadata fetchCached(MetadataFetch fetch) throws Exception {
+        String cacheKey;
+        try {
+            cacheKey = fetch.getCacheKey();
+        } catch (MetadataUnresolvedException | NoSuchAlgorithmException e) {
+            cacheKey = null;
+        }
+        MetadataRepository cache = MetadataRepository.getInstance(reinserter.getPlugin());
+
+        // immutable metadata parsed before
+        if (cacheKey != null) {
+            CachedMetadata cachedMetadata = cache.findOne(cacheKey);
+            if (cachedMetadata != null) {
+                if (!cachedMetadata.hasMetadata()) {
+                    return null;
+                }
+                try {
+                    Metadata metadata = Metadata.construct(cachedMetadata.getData());
+                    if (cachedMetadata.getName() != null) {
+                        metadata.resolve(cachedMetadata.getName());
+                    }
+                    return metadata;
+                } catch (MetadataParseException e) {
+                    // written by another version of the node, fetch again
+                }
+            }
+        }
+
+        Metadata metadata = fetch.fetch();
+        if (cacheKey != null) {
+            try {
+                byte[] data = metadata != null ? metadata.writeToByteArray() : new byte[0];
+                cache.save(new CachedMetadata(cacheKey, metadata != null ? metadata.getResolvedName() : null, data));
+            } catch (MetadataUnresolvedException e) {
+                // not cached
+            }
+        }
+        return metadata;
+    }
+}
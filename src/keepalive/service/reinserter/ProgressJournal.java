@@ -0,0 +1,266 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of the block outcomes of the current pass of a site.
+ * Records are written in batches and forced to disk at least once per
+ * second, so a restarted reinserter continues with the blocks and segments
+ * it has not finished yet. Replay stops at a torn or invalid record and
+ * drops the rest of the journal.
+ */
+class ProgressJournal {
+
+    static final byte FETCH_OK = 1;
+    static final byte FETCH_FAILED = 2;
+    static final byte INSERT_OK = 3;
+    static final byte INSERT_FAILED = 4;
+    static final byte SEGMENT_DONE = 5;
+    static final byte PASS_START = 6;
+
+    // type, segment id, block id
+    private static final int RECORD_SIZE = 1 + 4 + 4;
+
+    // far above the 256 blocks of a splitfile segment, keeps the bit sets of a corrupt record small
+    private static final int MAX_BLOCK_ID = 1 << 16;
+
+    private static final int SYNC_RECORDS = 64;
+    private static final long SYNC_INTERVAL = 1000;
+
+    private final File file;
+    private final Map<Integer, SegmentProgress> progress = new HashMap<>();
+    private boolean passStarted;
+    private FileOutputStream fileStream;
+    private DataOutputStream out;
+    private int unsyncedRecords;
+    private long lastSync;
+
+    ProgressJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the records of an interrupted pass and opens the journal for appending.
+     */
+    synchronized void replay() throws IOException {
+        progress.clear();
+        passStarted = false;
+        long validLength = 0;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    byte type = in.readByte();
+                    int segmentId = in.readInt();
+                    int blockId = in.readInt();
+                    if (!isValid(type, segmentId, blockId)) {
+                        break; // corrupt record, the rest is not trusted either
+                    }
+                    apply(type, segmentId, blockId);
+                    validLength += RECORD_SIZE;
+                }
+            } catch (EOFException ignored) {
+                // end of journal or torn record
+            }
+
+            // drop a torn or corrupt tail
+            if (validLength < file.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+        }
+        open(true);
+    }
+
+    /**
+     * Starts the journal of a new pass. The start is on disk when the method
+     * returns, so a restart continues the pass even if no segment was finished.
+     */
+    synchronized void reset() throws IOException {
+        close();
+        progress.clear();
+        passStarted = false;
+        open(false);
+        append(PASS_START, -1, -1);
+        if (out != null) {
+            sync();
+        }
+    }
+
+    /**
+     * @return the journal belongs to a pass that was started (and not necessarily finished)
+     */
+    synchronized boolean isPassStarted() {
+        return passStarted;
+    }
+
+    synchronized void append(byte type, int segmentId, int blockId) {
+        if (out == null) {
+            return;
+        }
+
+        apply(type, segmentId, blockId);
+        try {
+            out.writeByte(type);
+            out.writeInt(segmentId);
+            out.writeInt(blockId);
+            unsyncedRecords++;
+            if (unsyncedRecords >= SYNC_RECORDS || System.currentTimeMillis() - lastSync > SYNC_INTERVAL) {
+                sync();
+            }
+        } catch (IOException e) {
+            // journal is a help only, go on without it
+            closeQuietly();
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (out != null) {
+            try {
+                sync();
+            } finally {
+                out.close();
+                out = null;
+                fileStream = null;
+            }
+        }
+    }
+
+    /**
+     * @return journaled fetch result of the block, null if not fetched in this pass
+     */
+    synchronized Boolean getFetchResult(int segmentId, int blockId) {
+        SegmentProgress segmentProgress = progress.get(segmentId);
+        if (segmentProgress == null) {
+            return null;
+        }
+        if (segmentProgress.fetchOk.get(blockId)) {
+            return true;
+        }
+        if (segmentProgress.fetchFailed.get(blockId)) {
+            return false;
+        }
+        return null;
+    }
+
+    synchronized boolean isInserted(int segmentId, int blockId) {
+        SegmentProgress segmentProgress = progress.get(segmentId);
+        return segmentProgress != null && segmentProgress.inserted.get(blockId);
+    }
+
+    synchronized boolean isSegmentDone(int segmentId) {
+        SegmentProgress segmentProgress = progress.get(segmentId);
+        return segmentProgress != null && segmentProgress.done;
+    }
+
+    private void open(boolean append) throws IOException {
+        fileStream = new FileOutputStream(file, append);
+        out = new DataOutputStream(new BufferedOutputStream(fileStream));
+        lastSync = System.currentTimeMillis();
+        unsyncedRecords = 0;
+    }
+
+    private void sync() throws IOException {
+        out.flush();
+        fileStream.getFD().sync();
+        unsyncedRecords = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    private void closeQuietly() {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+        out = null;
+        fileStream = null;
+    }
+
+    private static boolean isValid(byte type, int segmentId, int blockId) {
+        switch (type) {
+            case PASS_START:
+                return segmentId == -1 && blockId == -1;
+            case SEGMENT_DONE:
+                return segmentId >= 0 && blockId == -1;
+            case FETCH_OK:
+            case FETCH_FAILED:
+            case INSERT_OK:
+            case INSERT_FAILED:
+                return segmentId >= 0 && blockId >= 0 && blockId < MAX_BLOCK_ID;
+            default:
+                return false;
+        }
+    }
+
+    private void apply(byte type, int segmentId, int blockId) {
+        if (type == PASS_START) {
+            passStarted = true;
+            return;
+        }
+
+        SegmentProgress segmentProgress = progress.get(segmentId);
+        if (segmentProgress == null) {
+            segmentProgress = new SegmentProgress();
+            progress.put(segmentId, segmentProgress);
+        }
+
+        switch (type) {
+            case FETCH_OK:
+                segmentProgress.fetchFailed.clear(blockId);
+                segmentProgress.fetchOk.set(blockId);
+                break;
+            case FETCH_FAILED:
+                segmentProgress.fetchOk.clear(blockId);
+                segmentProgress.fetchFailed.set(blockId);
+                break;
+            case INSERT_OK:
+                segmentProgress.inserted.set(blockId);
+                break;
+            case INSERT_FAILED:
+                segmentProgress.inserted.clear(blockId);
+                break;
+            case SEGMENT_DONE:
+                segmentProgress.done = true;
+                break;
+        }
+    }
+
+    // outcomes of the blocks of one segment, by block id
+    private static class SegmentProgress {
+
+        private final BitSet fetchOk = new BitSet();
+        private final BitSet fetchFailed = new BitSet();
+        private final BitSet inserted = new BitSet();
+        private boolean done;
+    }
+}
@@ -21,7 +21,6 @@ package keepalive.service.reinserter;
 import freenet.client.*;
 import freenet.client.ArchiveManager.ARCHIVE_TYPE;
 import freenet.client.InsertContext.CompatibilityMode;
-import freenet.client.Metadata.SplitfileAlgorithm;
 import freenet.client.async.ClientBaseCallback;
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientGetState;
@@ -32,10 +31,10 @@ import freenet.client.async.SplitFileFetcher;
 import freenet.client.async.SplitFileSegmentKeys;
 import freenet.client.async.StreamGenerator;
 import freenet.crypt.HashResult;
-import freenet.keys.CHKBlock;
 import freenet.keys.FreenetURI;
 import freenet.node.RequestClient;
 import freenet.pluginmanager.PluginRespirator;
+import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.ArrayBucket;
@@ -45,36 +44,64 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.*;
-import java.util.zip.ZipInputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import keepalive.Plugin;
 import keepalive.model.Block;
+import keepalive.model.BlockHistory;
+import keepalive.model.BlockIndex;
+import keepalive.model.BlockResult;
+import keepalive.model.BlockTable;
 import keepalive.model.Segment;
+import keepalive.model.SiteStatistics;
+import keepalive.repository.BlockHistoryRepository;
 import keepalive.repository.BlockRepository;
+import keepalive.repository.StatisticsRepository;
 import keepalive.service.net.*;
-import org.apache.tools.tar.TarInputStream;
 
 public final class Reinserter extends Thread {
 
+    // segments of a site healing at the same time, further ones wait
+    private static final int MAX_PENDING_HEALS = 2;
+
+    // below this confidence a file is close to the tolerance and its segments get more probes
+    private static final double UNCERTAIN_CONFIDENCE = 0.8;
+
+    // longest wait for the thread writing compressed metadata into the pipe
+    private static final long METADATA_WRITER_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
     private final Plugin plugin;
     private final int siteId;
-    private final CountDownLatch latch;
+    private final ReinserterScheduler scheduler;
     private PluginRespirator pr;
     private long lastActivityTime;
     private HashMap<FreenetURI, Metadata> manifestURIs;
-    private HashMap<FreenetURI, Block> blocks;
+    private MetadataPrefetcher metadataPrefetcher;
+    private BlockTable blocks;
     private int parsedSegmentId;
     private int parsedBlockId;
-    private ArrayList<Segment> segments = new ArrayList<>();
-
-    public Reinserter(Plugin plugin, int siteId, CountDownLatch latch) {
+    private int parsedFileId;
+    private SegmentSource segmentSource;
+    private SiteStatistics statistics;
+    private final Random random = new Random();
+    private AvailabilityEstimator availabilityEstimator;
+    private ProgressJournal journal;
+    private final LinkedHashMap<SegmentHealer, Future<Boolean>> pendingHeals = new LinkedHashMap<>();
+
+    public Reinserter(Plugin plugin, int siteId, ReinserterScheduler scheduler) {
         this.plugin = plugin;
         this.siteId = siteId;
-        this.latch = latch;
+        this.scheduler = scheduler;
         this.setName("KeepAlive ReInserter " + siteId);
     }
 
@@ -85,7 +112,7 @@ public final class Reinserter extends Thread {
             // init
             pr = plugin.pluginContext.pluginRespirator;
             manifestURIs = new HashMap<>();
-            blocks = new HashMap<>();
+            blocks = new BlockTable();
             String uriProp = plugin.getProp("uri_" + siteId);
             plugin.log("start reinserter for site " + uriProp + " (" + siteId + ")", 1);
             plugin.clearLog(plugin.getLogFilename(siteId));
@@ -146,90 +173,152 @@ public final class Reinserter extends Thread {
 
             // load list of keys (if exists)
             // skip if 1 because the manifest failed to fetch before.
+            migrateBlockList();
             String numBlocks = plugin.getProp("blocks_" + siteId);
+            boolean blocksParsed = false;
+            EditionDiff editionDiff = null;
             if (!numBlocks.equals("?") && !numBlocks.equals("1")) {
                 log("*** loading list of blocks ***", 0, 0);
-                loadBlockUris();
             } else {
-                // parse metadata
-                log("*** parsing data structure ***", 0, 0);
-                parsedSegmentId = -1;
-                parsedBlockId = -1;
-                while (manifestURIs.size() > 0) {
-                    if (isInterrupted()) {
-                        return;
-                    }
+                // keep the previous list (e.g. of the last edition) to find unchanged segments
+                BlockListFile previousList = getBlockListFile().exists() ? new BlockListFile(getBlockListFile()) : null;
+                try {
 
-                    if (!isActive()) {
-                        plugin.log("Stop after stuck state (metadata)", 0);
-                        return;
+                    // parse metadata
+                    log("*** parsing data structure ***", 0, 0);
+                    parsedSegmentId = -1;
+                    parsedBlockId = -1;
+                    parsedFileId = -1;
+                    metadataPrefetcher = new MetadataPrefetcher(this, plugin.getIntProp("power"));
+                    try {
+                        while (manifestURIs.size() > 0) {
+                            if (isInterrupted()) {
+                                return;
+                            }
+
+                            if (!isActive()) {
+                                plugin.log("Stop after stuck state (metadata)", 0);
+                                return;
+                            }
+
+                            uri = (FreenetURI) manifestURIs.keySet().toArray()[0];
+                            log(uri.toString(), 0);
+                            try {
+                                parseMetadata(uri, null, 0);
+                            } catch (FetchFailedException e) {
+                                log(e.getMessage(), 0);
+                                return;
+                            }
+                            manifestURIs.remove(uri);
+                        }
+                    } finally {
+                        metadataPrefetcher.shutdown();
                     }
 
-                    uri = (FreenetURI) manifestURIs.keySet().toArray()[0];
-                    log(uri.toString(), 0);
-                    try {
-                        parseMetadata(uri, null, 0);
-                    } catch (FetchFailedException e) {
-                        log(e.getMessage(), 0);
+                    if (isInterrupted()) {
                         return;
                     }
-                    manifestURIs.remove(uri);
-                }
 
-                if (isInterrupted()) {
-                    return;
+                    if (previousList != null && previousList.getBlocksCount() > 0) {
+                        editionDiff = new EditionDiff(previousList, new BlockIndex(blocks),
+                                plugin.getIntProp("segment_" + siteId));
+                    }
+                } finally {
+                    // closed before the list is replaced
+                    if (previousList != null) {
+                        previousList.close();
+                    }
                 }
 
                 saveBlockUris();
                 plugin.setIntProp("blocks_" + siteId, blocks.size());
                 plugin.saveProp();
+                blocksParsed = true;
             }
 
-            // max segment id
-            int maxSegmentId = -1;
-            for (Block block : blocks.values()) {
-                maxSegmentId = Math.max(maxSegmentId, block.getSegmentId());
+            // segments are read one by one from the block list
+            segmentSource = new SegmentSource(this, new BlockListFile(getBlockListFile()));
+            int maxSegmentId = segmentSource.getMaxSegmentId();
+
+            // register the blocks of the site, blocks of other sites as well share their history
+            BlockHistoryRepository historyRepository = BlockHistoryRepository.getInstance(plugin);
+            if (blocksParsed || historyRepository.countSiteBlocks(siteId) == 0) {
+                historyRepository.saveSiteBlocks(siteId, segmentSource.getBlockList().getRoutingKeys());
+            }
+            int sharedBlocks = historyRepository.countSharedBlocks(siteId);
+            if (sharedBlocks > 0) {
+                log(sharedBlocks + " blocks shared with other sites", 0);
             }
 
             // init reinsertion
-            if (plugin.getIntProp("segment_" + siteId) == maxSegmentId) {
+            journal = new ProgressJournal(new File(plugin.getPluginDirectory() + plugin.getJournalFilename(siteId)));
+            StatisticsRepository statisticsRepository = StatisticsRepository.getInstance(plugin);
+            SiteStatistics previousStatistics = null;
+            if (editionDiff != null) {
+                previousStatistics = statisticsRepository.find(siteId);
+                log(editionDiff.getUnchangedCount() + " of " + (maxSegmentId + 1) +
+                        " segments unchanged since the previous block list", 0);
+
+                // segment ids of the new list start a new numbering
                 plugin.setIntProp("segment_" + siteId, -1);
             }
-            if (plugin.getIntProp("segment_" + siteId) == -1) {
+            blocks = null;
+            boolean continuePass;
+            if (plugin.getIntProp("segment_" + siteId) == maxSegmentId) {
+                continuePass = false; // the last pass is finished
+            } else if (blocksParsed) {
+                // a new block list may have other segment and block ids
+                continuePass = plugin.getIntProp("segment_" + siteId) != -1;
+                if (continuePass) {
+                    journal.reset();
+                }
+            } else {
+                continuePass = resumeFromJournal(maxSegmentId);
+            }
+            if (!continuePass) {
 
                 log("*** starting reinsertion ***", 0, 0);
+                plugin.setIntProp("segment_" + siteId, -1);
+                journal.reset();
+
+                // availability of the previous pass is the prior of this pass
+                int[] successValues = plugin.getSuccessValues(siteId);
+                if (successValues != null && successValues[0] + successValues[1] > 0) {
+                    plugin.setIntProp("availability_prior_" + siteId,
+                            100 * successValues[0] / (successValues[0] + successValues[1]));
+                }
 
                 // reset success counter
-                StringBuilder success = new StringBuilder();
-                StringBuilder segmentsSuccess = new StringBuilder();
-                for (int i = 0; i <= maxSegmentId; i++) {
-                    if (i > 0) success.append(",");
+                statistics = statisticsRepository.create(siteId, maxSegmentId + 1);
 
-                    success.append("0,0");
-                    segmentsSuccess.append("0");
+                if (editionDiff != null) {
+                    carryOverSegments(editionDiff, previousStatistics);
                 }
-                plugin.setProp("success_" + siteId, success.toString());
-                plugin.setProp("success_segments_" + siteId, segmentsSuccess.toString());
-                plugin.saveProp();
 
             } else {
 
                 log("*** continuing reinsertion ***", 0, 0);
 
-                // add dummy segments
-                for (int i = 0; i <= plugin.getIntProp("segment_" + siteId); i++) {
-                    segments.add(null);
-                }
+                // skip the finished segments
+                segmentSource.setNextSegmentId(plugin.getIntProp("segment_" + siteId) + 1);
 
                 // reset success counter
-                String[] successProp = plugin.getProp("success_" + siteId).split(",");
-                for (int i = (plugin.getIntProp("segment_" + siteId) + 1) * 2; i < successProp.length; i++) {
-                    successProp[i] = "0";
+                statistics = statisticsRepository.find(siteId);
+                if (statistics.getSegmentCount() != maxSegmentId + 1) {
+                    SiteStatistics previous = statistics;
+                    statistics = statisticsRepository.create(siteId, maxSegmentId + 1);
+                    for (int i = 0; i < Math.min(previous.getSegmentCount(), statistics.getSegmentCount()); i++) {
+                        statistics.copySegment(previous, i, i);
+                    }
                 }
-                saveSuccessToProp(successProp);
+                statistics.clearFrom(plugin.getIntProp("segment_" + siteId) + 1);
 
             }
 
+            String availabilityPrior = plugin.getProp("availability_prior_" + siteId);
+            availabilityEstimator = new AvailabilityEstimator(
+                    availabilityPrior != null ? Integer.parseInt(availabilityPrior) / 100.0 : -1);
+
             // start reinsertion
             boolean doReinsertions = true;
             timeLeft -= System.currentTimeMillis() - startedAt;
@@ -240,59 +329,60 @@ public final class Reinserter extends Thread {
                     return;
                 }
 
+                // insert segments healed in the meantime
+                finishHeals(MAX_PENDING_HEALS);
+
                 // next segment
-                int segmentSize = 0;
-                for (Block block : blocks.values()) {
-                    if (block.getSegmentId() == segments.size()) {
-                        segmentSize++;
-                    }
-                }
-                if (segmentSize == 0) {
+                if (!segmentSource.hasNext()) {
                     break; // ready
                 }
-                Segment segment = new Segment(this, segments.size(), segmentSize);
-                for (Block block : blocks.values()) {
-                    if (block.getSegmentId() == segments.size()) {
-                        segment.addBlock(block);
-                    }
-                }
-                segments.add(segment);
+                Segment segment = segmentSource.next();
+                int segmentSize = segment.size();
                 log(segment, "*** segment size: " + segment.size(), 0);
+                loadBlockHistory(segment);
+                applyJournal(segment);
                 doReinsertions = true;
 
+                // unchanged since the previous block list and verified in this pass
+                if (journal.isSegmentDone(segment.getId())) {
+                    log(segment, "-> segment already verified in this pass", 0, 1);
+                    segment.setVerified(true);
+                    checkFinishedSegments();
+                    continue;
+                }
+
                 // get persistence rate of splitfile segments
                 if (segment.size() > 1) {
-                    log(segment, "starting availability check for segment (n=" +
-                            plugin.getIntProp("splitfile_test_size") + ")", 0);
+                    double tolerance = (double) plugin.getIntProp("splitfile_tolerance") / 100;
+                    double fileConfidence = availabilityEstimator.getConfidence(segment.getFileId(), tolerance);
+
+                    // always fetch at most the configured number of blocks (or half segment size, whichever is smaller),
+                    // twice as many if the file is close to the tolerance
+                    int splitfileTestSize = plugin.getIntProp("splitfile_test_size");
+                    if (fileConfidence < UNCERTAIN_CONFIDENCE) {
+                        splitfileTestSize *= 2;
+                    }
+                    splitfileTestSize = Math.min(splitfileTestSize, (int) Math.ceil(segmentSize / 2.0));
+                    log(segment, "starting availability check for segment (n<=" + splitfileTestSize +
+                            ", file estimate " + (int) (availabilityEstimator.getEstimate(segment.getFileId()) * 100) +
+                            "%, confidence " + (int) (fileConfidence * 100) + "%)", 0);
 
-                    // select prove blocks
+                    // fetch random blocks until the availability is clear
                     ArrayList<Block> requestedBlocks = new ArrayList<>();
-                    // always fetch exactly the configured number of blocks (or half segment size, whichever is smaller)
-                    int splitfileTestSize = Math.min(
-                            plugin.getIntProp("splitfile_test_size"),
-                            (int) Math.ceil(segmentSize / 2.0));
-
-                    for (int i = 0; requestedBlocks.size() < splitfileTestSize; i++) {
-                        if (i == segmentSize) {
-                            i = 0;
-                        }
-                        if ((Math.random() < (splitfileTestSize / (double) segmentSize))
-                                && !(requestedBlocks.contains(segment.getBlock(i)))) {
-                            // add a block
-                            requestedBlocks.add(segment.getBlock(i));
-                        }
-                    }
-                    
                     FetchBlocksResult fetchBlocksResult = new FetchBlocksResult();
-                    fetchBlocks(fetchBlocksResult, segment, requestedBlocks);
+                    AvailabilityTest availabilityTest = new AvailabilityTest(tolerance, splitfileTestSize,
+                            availabilityEstimator.getPriorLogOdds(segment.getFileId(), tolerance));
+                    probeBlocks(availabilityTest, fetchBlocksResult, segment, requestedBlocks);
+                    updateAvailabilityStatistic(segment, tolerance);
 
                     double persistenceRate = fetchBlocksResult.calculatePersistenceRate();
-                    if (persistenceRate >= (double) plugin.getIntProp("splitfile_tolerance") / 100) {
+                    if (availabilityTest.getDecision() == AvailabilityTest.Decision.AVAILABLE) {
                         doReinsertions = false;
                         segment.regFetchSuccess(persistenceRate);
                         updateSegmentStatistic(segment, true);
                         log(segment, "availability of segment ok: " + ((int) (persistenceRate * 100)) +
-                                "% (approximated)", 0, 1);
+                                "% (approximated, n=" + availabilityTest.getSamples() + ")", 0, 1);
+                        finishHeals(0);
                         checkFinishedSegments();
                         if (plugin.getIntProp("segment_" + siteId) != maxSegmentId) {
                             log(segment, "-> segment not reinserted; moving on will resume on next pass.", 0, 1);
@@ -300,7 +390,8 @@ public final class Reinserter extends Thread {
                         }
                     } else {
                         log(segment, "<b>availability of segment not ok: " +
-                                ((int) (persistenceRate * 100)) + "% (approximated)</b>", 0, 1);
+                                ((int) (persistenceRate * 100)) + "% (approximated, n=" +
+                                availabilityTest.getSamples() + ")</b>", 0, 1);
                         log(segment, "-> fetch all available blocks now (n=" + segment.size() + ")", 0, 1);
                     }
 
@@ -314,15 +405,21 @@ public final class Reinserter extends Thread {
                             }
                         }
 
-                        fetchBlocks(fetchBlocksResult, segment, requestedBlocks);
+                        // in early decode mode stop as soon as the segment can be decoded
+                        int decodableAt = plugin.getIntProp("early_decode") == 1 ? segment.dataSize() : 0;
+                        boolean stoppedEarly = fetchBlocks(fetchBlocksResult, segment, requestedBlocks, decodableAt);
 
                         persistenceRate = fetchBlocksResult.calculatePersistenceRate();
-                        if (persistenceRate >= (double) plugin.getIntProp("splitfile_tolerance") / 100.0) {
+                        if (stoppedEarly) {
+                            log(segment, "<b>" + segment.dataSize() + " blocks fetched, segment can be decoded; " +
+                                    "remaining fetches cancelled</b>", 0, 1);
+                        } else if (persistenceRate >= (double) plugin.getIntProp("splitfile_tolerance") / 100.0) {
                             doReinsertions = false;
                             segment.regFetchSuccess(persistenceRate);
                             updateSegmentStatistic(segment, true);
                             log(segment, "availability of segment ok: " + ((int) (persistenceRate * 100)) +
                                     "% (exact)", 0, 1);
+                            finishHeals(0);
                             checkFinishedSegments();
                             if (plugin.getIntProp("segment_" + siteId) != maxSegmentId) {
                                 log(segment, "-> segment not reinserted; moving on will resume on next pass.", 0, 1);
@@ -335,71 +432,12 @@ public final class Reinserter extends Thread {
                     }
 
                     if (doReinsertions) { // persistenceRate < splitfile tolerance
-                        // heal segment
-
-                        // init
+                        // heal segment on the heal pool and go on with the next segment
                         log(segment, "starting segment healing", 0, 1);
-                        byte[][] dataBlocks = new byte[segment.dataSize()][];
-                        byte[][] checkBlocks = new byte[segment.checkSize()][];
-                        boolean[] dataBlocksPresent = new boolean[dataBlocks.length];
-                        boolean[] checkBlocksPresent = new boolean[checkBlocks.length];
-                        for (int i = 0; i < dataBlocks.length; i++) {
-                            if (segment.getDataBlock(i).isFetchSuccessful()) {
-                                dataBlocks[i] = segment.getDataBlock(i).getBucket().toByteArray();
-                                dataBlocksPresent[i] = true;
-                            } else {
-                                dataBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
-                                dataBlocksPresent[i] = false;
-                            }
-                        }
-                        for (int i = 0; i < checkBlocks.length; i++) {
-                            if (segment.getCheckBlock(i).isFetchSuccessful()) {
-                                checkBlocks[i] = segment.getCheckBlock(i).getBucket().toByteArray();
-                                checkBlocksPresent[i] = true;
-                            } else {
-                                checkBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
-                                checkBlocksPresent[i] = false;
-                            }
-                        }
-
-                        // decode
-                        FECCodec codec = FECCodec.getInstance(SplitfileAlgorithm.ONION_STANDARD);
-                        log(segment, "start decoding", 0, 1);
-                        try {
-                            codec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, CHKBlock.DATA_LENGTH);
-                            log(segment, "-> decoding successful", 1, 2);
-                        } catch (Exception e) {
-                            log(segment, "<b>segment decoding (FEC) failed, do not reinsert</b>", 1, 2);
-                            updateSegmentStatistic(segment, false);
-                            segment.setHealingNotPossible(true);
-                            checkFinishedSegments();
-                            continue;
-                        }
-
-                        // encode (= build all data blocks  and check blocks from data blocks)
-                        log(segment, "start encoding", 0, 1);
-                        try {
-                            codec.encode(dataBlocks, checkBlocks, checkBlocksPresent, CHKBlock.DATA_LENGTH);
-                            log(segment, "-> encoding successful", 1, 2);
-                        } catch (Exception e) {
-                            log(segment, "<b>segment encoding (FEC) failed, do not reinsert</b>", 1, 2);
-                            updateSegmentStatistic(segment, false);
-                            segment.setHealingNotPossible(true);
-                            checkFinishedSegments();
-                            continue;
-                        }
-
-                        // finish
-                        for (int i = 0; i < dataBlocks.length; i++) {
-                            log(segment, "dataBlock_" + i, dataBlocks[i]);
-                            segment.getDataBlock(i).setBucket(new ArrayBucket(dataBlocks[i]));
-                        }
-                        for (int i = 0; i < checkBlocks.length; i++) {
-                            log(segment, "checkBlock_" + i, checkBlocks[i]);
-                            segment.getCheckBlock(i).setBucket(new ArrayBucket(checkBlocks[i]));
-                        }
-                        log(segment, "segment healing (FEC) successful, start with reinsertion", 0, 1);
-                        updateSegmentStatistic(segment, true);
+                        SegmentHealer healer = new SegmentHealer(this, segment, plugin.getBlockBufferPool());
+                        pendingHeals.put(healer, plugin.getHealExecutor().submit(healer));
+                        finishHeals(MAX_PENDING_HEALS);
+                        continue;
                     }
                 }
 
@@ -412,9 +450,13 @@ public final class Reinserter extends Thread {
                 checkFinishedSegments();
             }
 
+            // insert the segments still healing
+            finishHeals(0);
+
             // wait for finishing top block, if it was fetched.
-            if (segments.size() > 0 && segments.get(0) != null) {
-                while (!(segments.get(0).isFinished())) {
+            Segment topSegment = segmentSource.get(0);
+            if (topSegment != null) {
+                while (!(topSegment.isFinished())) {
                     synchronized (this) {
                         try {
                             this.wait(1000);
@@ -515,127 +557,323 @@ public final class Reinserter extends Thread {
                 plugin.log("    " + e.getStackTrace()[i].toString());
             }
         } finally {
-            latch.countDown();
+            for (Future<Boolean> pendingHeal : pendingHeals.values()) {
+                pendingHeal.cancel(false);
+            }
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    plugin.log("Reinserter.run(): journal cannot be closed: " + e.getMessage());
+                }
+            }
+            if (segmentSource != null) {
+                try {
+                    segmentSource.close();
+                } catch (IOException e) {
+                    plugin.log("Reinserter.run(): block list cannot be closed: " + e.getMessage());
+                }
+            }
+            BlockHistoryRepository.getInstance(plugin).flush();
+            StatisticsRepository.getInstance(plugin).flush();
+            scheduler.onReinserterFinished(this);
             log("stopped", 0);
             plugin.log("reinserter stopped (" + siteId + ")");
         }
     }
     
-    private void fetchBlocks(FetchBlocksResult fetchBlocksResult, Segment segment, ArrayList<Block> requestedBlocks) throws InterruptedException, Exception {
-        ExecutorService executor = Executors.newFixedThreadPool(plugin.getIntProp("power"));
+    /**
+     * @param decodableAt stop when this number of blocks with data is reached (0 = fetch all)
+     * @return the fetches were stopped because enough blocks were fetched
+     */
+    private boolean fetchBlocks(FetchBlocksResult fetchBlocksResult, Segment segment, ArrayList<Block> requestedBlocks,
+                                int decodableAt) throws InterruptedException, Exception {
+        JobExecutor executor = plugin.getJobExecutor();
+        BlockingQueue<Future<Boolean>> completions = new LinkedBlockingQueue<>();
+        List<Future<Boolean>> fetchFutures = new ArrayList<>();
+        int finished = 0;
+
+        // blocks fetched during the availability check
+        int withData = 0;
+        for (int i = 0; i < segment.size(); i++) {
+            if (segment.getBlock(i).isFetchSuccessful()) {
+                withData++;
+            }
+        }
+
         try {
-            List<Future<Boolean>> fetchFutures = new ArrayList<Future<Boolean>>();
             for (Block requestedBlock : requestedBlocks) {
+                if (decodableAt > 0 && withData >= decodableAt) {
+                    return true;
+                }
+
                 // fetch next block that has not been fetched yet
                 if (!requestedBlock.isFetchInProgress()) {
                     continue;
                 }
                 SingleFetch singleFetch = new SingleFetch(this, requestedBlock, true);
-                Future<Boolean> fetchFuture = executor.submit(singleFetch);
-                fetchFutures.add(fetchFuture);
+                fetchFutures.add(executor.submit(JobExecutor.Lane.FETCH, singleFetch, completions));
+
+                // handle results of blocks finished while submitting
+                Future<Boolean> fetchFuture;
+                while ((fetchFuture = completions.poll()) != null) {
+                    if (registerFetchResult(fetchBlocksResult, segment, requestedBlocks.size(), fetchFuture)) {
+                        withData++;
+                    }
+                    finished++;
+                }
             }
-            while (fetchFutures.size() > 0) {
-                Boolean success = false;
-                for (Future<Boolean> fetchFuture : fetchFutures) {
-                    if (fetchFuture.isDone()) {
-                        fetchBlocksResult.addResult(fetchFuture.get());
-                        fetchFutures.remove(fetchFuture);
-                        success = true;
-
-                        int finished = fetchBlocksResult.failed+fetchBlocksResult.successful;
-                        int logInterval = Math.max(1, requestedBlocks.size() / 8);
-                        if (finished % logInterval == 0) {
-                            String log = (finished) + "/" + String.valueOf(requestedBlocks.size()) +
-                                    " blocks fetched (" + (fetchBlocksResult.successful) + "/" +
-                                    (fetchBlocksResult.failed) + ", " +
-                                    ((int) (fetchBlocksResult.calculatePersistenceRate() * 100)) + "%)";
-                            log(segment.getId(), log, 1, 1);
+            for (; finished < fetchFutures.size(); finished++) {
+                if (decodableAt > 0 && withData >= decodableAt) {
+                    return true;
+                }
+                if (registerFetchResult(fetchBlocksResult, segment, requestedBlocks.size(), completions.take())) {
+                    withData++;
+                }
+            }
+            return false;
+        } finally {
+            cancelJobs(fetchFutures);
+        }
+    }
+
+    /**
+     * Inserts the healed segments and registers failed heals, oldest first.
+     *
+     * @param maxPending number of segments that may still be healing afterwards
+     */
+    private void finishHeals(int maxPending) throws InterruptedException, Exception {
+        Iterator<Entry<SegmentHealer, Future<Boolean>>> iterator = pendingHeals.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<SegmentHealer, Future<Boolean>> pendingHeal = iterator.next();
+            if (!pendingHeal.getValue().isDone() && pendingHeals.size() <= maxPending) {
+                continue;
+            }
+
+            boolean healed;
+            try {
+                healed = pendingHeal.getValue().get();
+            } catch (ExecutionException e) {
+                log(pendingHeal.getKey().getSegment(), "<b>segment healing failed: " +
+                        e.getCause().getMessage() + "</b>", 1, 1);
+                healed = false;
+            }
+            iterator.remove();
+
+            SegmentHealer healer = pendingHeal.getKey();
+            Segment segment = healer.getSegment();
+            plugin.getHealExecutor().registerHeal(healer.getQueueTime(), healer.getHealTime());
+            log(segment, "healing took " + healer.getHealTime() + " ms (queued " + healer.getQueueTime() + " ms)",
+                    0, 1);
+            if (healed) {
+                log(segment, "segment healing (FEC) successful, start with reinsertion", 0, 1);
+                updateSegmentStatistic(segment, true);
+                insertBlocks(segment);
+            } else {
+                updateSegmentStatistic(segment, false);
+                segment.setHealingNotPossible(true);
+            }
+            checkFinishedSegments();
+        }
+    }
+
+    private void probeBlocks(AvailabilityTest availabilityTest, FetchBlocksResult fetchBlocksResult, Segment segment,
+                             ArrayList<Block> requestedBlocks) throws InterruptedException, ExecutionException {
+        JobExecutor executor = plugin.getJobExecutor();
+        BlockingQueue<Future<Boolean>> completions = new LinkedBlockingQueue<>();
+        List<Future<Boolean>> fetchFutures = new ArrayList<>();
+        BlockSampler sampler = new BlockSampler(segment, random);
+        List<Block> knownAvailable = new ArrayList<>();
+        int running = 0;
+        int notRequested = 0;
+        try {
+            while (availabilityTest.getDecision() == AvailabilityTest.Decision.CONTINUE) {
+                // keep as many fetches running as the lane allows, but not more than samples needed
+                int parallel = executor.getController(JobExecutor.Lane.FETCH).getLimit();
+                while (running < parallel && sampler.hasNext()
+                        && availabilityTest.getSamples() + running < availabilityTest.getMaxSamples()) {
+                    Block block = sampler.next();
+                    requestedBlocks.add(block);
+
+                    // blocks fetched before a restart or verified recently count without a request
+                    Boolean known = journal.getFetchResult(segment.getId(), block.getId());
+                    if (known == null && isFresh(block)) {
+                        known = true;
+                    }
+                    if (known != null) {
+                        if (known) {
+                            // counted once its result is final, the data may still be needed for healing
+                            knownAvailable.add(block);
+                        } else {
+                            block.setFetchSuccessful(false);
+                            block.setFetchDone(true);
+                            block.setResult(BlockResult.KNOWN_FAILED);
+                            fetchBlocksResult.addResult(false);
+                            availabilityEstimator.add(segment.getFileId(), false);
                         }
-                        break;
+                        availabilityTest.add(known);
+                        notRequested++;
+                        if (availabilityTest.getDecision() != AvailabilityTest.Decision.CONTINUE) {
+                            break;
+                        }
+                        continue;
                     }
+
+                    fetchFutures.add(executor.submit(
+                            JobExecutor.Lane.FETCH, new SingleFetch(this, block, true), completions));
+                    running++;
                 }
-                if (!success) {
-                    Thread.sleep(1000);
+                if (running == 0) {
+                    break;
                 }
-            }
-            executor.shutdown();
-            boolean done = executor.awaitTermination(1, TimeUnit.HOURS);
-            if (!done) {
-                log(segment, "<b>fetchBlocks failed</b>", 0);
-                throw new Exception("fetching failed within allotted time");
+
+                availabilityTest.add(registerFetchResult(
+                        fetchBlocksResult, segment, availabilityTest.getMaxSamples(), completions.take()));
+                running--;
             }
         } finally {
-            if (!executor.isShutdown()) {
-                executor.shutdownNow();
+            // decision made, fetches still running are not needed anymore
+            cancelJobs(fetchFutures);
+        }
+
+        // available blocks are fetched for their data if the segment is healed and counted then
+        if (availabilityTest.getDecision() == AvailabilityTest.Decision.AVAILABLE) {
+            for (Block block : knownAvailable) {
+                block.setFetchSuccessful(true);
+                block.setFetchDone(true);
+                block.setResult(BlockResult.KNOWN_AVAILABLE);
+                fetchBlocksResult.addResult(true);
+                availabilityEstimator.add(segment.getFileId(), true);
             }
         }
-        return;
+
+        if (notRequested > 0) {
+            log(segment, "-> " + notRequested + " blocks known from the journal or verified recently", 1, 1);
+        }
+    }
+
+    private boolean registerFetchResult(FetchBlocksResult fetchBlocksResult, Segment segment, int requested,
+                                        Future<Boolean> fetchFuture) throws InterruptedException, ExecutionException {
+        boolean successful = fetchFuture.get();
+        fetchBlocksResult.addResult(successful);
+        availabilityEstimator.add(segment.getFileId(), successful);
+
+        int finished = fetchBlocksResult.failed + fetchBlocksResult.successful;
+        int logInterval = Math.max(1, requested / 8);
+        if (finished % logInterval == 0) {
+            String log = (finished) + "/" + String.valueOf(requested) +
+                    " blocks fetched (" + (fetchBlocksResult.successful) + "/" +
+                    (fetchBlocksResult.failed) + ", " +
+                    ((int) (fetchBlocksResult.calculatePersistenceRate() * 100)) + "%)";
+            log(segment.getId(), log, 1, 1);
+        }
+        return successful;
     }
 
     private void insertBlocks(Segment segment) throws InterruptedException, Exception {
         log(segment, "starting reinsertion", 0, 1);
         segment.initInsert();
 
-        ExecutorService executor = Executors.newFixedThreadPool(plugin.getIntProp("power"));
+        // reinsert only as many blocks as needed to get a margin above the tolerance
+        Set<Block> selected = new HashSet<>();
+        if (segment.size() > 1) {
+            // blocks inserted or fetched by another site (sharing the block) since they failed here
+            int handledElsewhere = 0;
+            for (int i = 0; i < segment.size(); i++) {
+                Block block = segment.getBlock(i);
+                if (!block.isFetchSuccessful() && !block.isInsertSuccessful() && isFresh(block)) {
+                    block.setInsertSuccessful(true);
+                    block.setInsertDone(true);
+                    block.setResult(BlockResult.HANDLED_ELSEWHERE);
+                    handledElsewhere++;
+                }
+            }
+            if (handledElsewhere > 0) {
+                log(segment, "-> " + handledElsewhere + " blocks inserted or verified recently by other sites", 1, 1);
+            }
+
+            HealPolicy healPolicy = new HealPolicy((double) plugin.getIntProp("splitfile_tolerance") / 100,
+                    (double) plugin.getIntProp("heal_margin") / 100);
+            selected.addAll(healPolicy.select(segment));
+            log(segment, selected.size() + " blocks selected to reach " + healPolicy.getTarget(segment) + "/" +
+                    segment.size() + " available blocks", 1, 1);
+        }
+
+        JobExecutor executor = plugin.getJobExecutor();
+        BlockingQueue<Future<Object>> completions = new LinkedBlockingQueue<>();
+        List<Future<Object>> insertFutures = new ArrayList<>();
         try {
-            List<Future<?>> insertFutures = new ArrayList<Future<?>>();
             for (int i = 0; i < segment.size(); i++) {
                 checkFinishedSegments();
                 isActive(true);
-                if (segment.size() > 1) {
+                if (segment.size() == 1 && (segment.getBlock(0).isInsertSuccessful() || isFresh(segment.getBlock(0)))) {
+                    // single block inserted in this pass or verified recently
+                    log(segment, "-> block recently verified or inserted, no reinsertion", 1, 1);
+                    segment.getBlock(0).setInsertDone(true);
+                    updateSegmentStatistic(segment, true);
+                } else if (segment.size() > 1) {
                     if (segment.getBlock(i).isFetchSuccessful()) {
                         segment.regFetchSuccess(true);
+                    } else if (segment.getBlock(i).isInsertSuccessful()) {
+                        // inserted in this pass before a restart
+                        segment.regFetchSuccess(false);
+                    } else if (!segment.getBlock(i).isHealable()) {
+                        // healed data does not match the key
+                        segment.regFetchSuccess(false);
+                        segment.getBlock(i).setResult(BlockResult.NOT_HEALABLE);
+                        segment.getBlock(i).setInsertDone(true);
+                    } else if (!selected.contains(segment.getBlock(i))) {
+                        // not needed to reach the target
+                        if (!segment.getBlock(i).isFetchInProgress()) {
+                            segment.regFetchSuccess(false);
+                        }
+                        segment.getBlock(i).setResult(BlockResult.NOT_NEEDED);
+                        segment.getBlock(i).setInsertDone(true);
+                    } else if (segment.getBlock(i).isFetchInProgress()) {
+                        // not fetched (early decode or known from the journal), check before inserting
+                        SingleInsert singleInsert = new SingleInsert(this, segment, segment.getBlock(i), true);
+                        insertFutures.add(executor.submit(JobExecutor.Lane.INSERT, singleInsert, completions));
                     } else {
                         segment.regFetchSuccess(false);
-                        SingleInsert singleInsert = new SingleInsert(this, segment.getBlock(i));
-                        insertFutures.add(executor.submit(singleInsert));
+                        SingleInsert singleInsert = new SingleInsert(this, segment, segment.getBlock(i));
+                        insertFutures.add(executor.submit(JobExecutor.Lane.INSERT, singleInsert, completions));
                     }
                 } else {
-                    SingleInsert singleInsert = new SingleInsert(this, segment.getBlock(i));
-                    insertFutures.add(executor.submit(singleInsert));
+                    SingleInsert singleInsert = new SingleInsert(this, segment, segment.getBlock(i));
+                    insertFutures.add(executor.submit(JobExecutor.Lane.INSERT, singleInsert, completions));
                 }
             }
             int totalInserts = insertFutures.size();
-            while (insertFutures.size() > 0) {
-                boolean success = false;
-                for (Future<?> insertFuture : insertFutures) {
-                    if (insertFuture.isDone()) {
-                        insertFutures.remove(insertFuture);
-                        success = true;
-
-                        int completed = totalInserts - insertFutures.size();
-                        int logInterval = Math.max(1, totalInserts / 8);
-                        if (completed % logInterval == 0) {
-                            String log = (completed) + "/" + String.valueOf(totalInserts) +
-                                    " blocks inserted (" + (100 * completed / totalInserts) + "%)";
-                            log(segment.getId(), log, 1, 1);
-                        }
-
-                        break;
-                    }
-                }
-                if (!success) {
-                    Thread.sleep(1000);
+            for (int completed = 1; completed <= totalInserts; completed++) {
+                completions.take();
+
+                int logInterval = Math.max(1, totalInserts / 8);
+                if (completed % logInterval == 0) {
+                    String log = (completed) + "/" + String.valueOf(totalInserts) +
+                            " blocks inserted (" + (100 * completed / totalInserts) + "%)";
+                    log(segment.getId(), log, 1, 1);
                 }
             }
-            executor.shutdown();
-            boolean done = executor.awaitTermination(1, TimeUnit.HOURS);
-            if (!done) {
-                log(segment, "<b>reinsertion failed</b>", 0);
-                throw new Exception("insertion failed within allotted time");
-            }
         } finally {
-            if (!executor.isShutdown()) {
-                executor.shutdownNow();
-            }
+            cancelJobs(insertFutures);
+        }
+    }
+
+    // stop jobs of this site that are still waiting or running (e.g. after an interrupt),
+    // the segment may be healed afterwards and must not be changed by a late fetch
+    private void cancelJobs(List<? extends Future<?>> futures) {
+        if (!plugin.getJobExecutor().cancel(futures)) {
+            log("cancelled jobs did not stop in time", 1);
         }
     }
 
     private void checkFinishedSegments() {
         int segment;
-        while ((segment = plugin.getIntProp("segment_" + siteId)) < segments.size() - 1) {
-            if (segments.get(segment + 1).isFinished()) {
+        while ((segment = plugin.getIntProp("segment_" + siteId)) < segmentSource.getNextSegmentId() - 1) {
+            if (segmentSource.get(segment + 1).isFinished()) {
                 plugin.setIntProp("segment_" + siteId, segment + 1);
+                journal.append(ProgressJournal.SEGMENT_DONE, segment + 1, -1);
+                segmentSource.release(segment + 1);
             } else {
                 break;
             }
@@ -644,42 +882,23 @@ public final class Reinserter extends Thread {
     }
 
     private void saveBlockUris() throws IOException {
-        File f = new File(plugin.getPluginDirectory() + plugin.getBlockListFilename(siteId));
-        if (f.exists()) {
-            if (!f.delete()) {
-                log("Reinserter.saveBlockUris(): remove block list log files was not successful.", 0);
-            }
-        }
+        BlockListFile.write(getBlockListFile(), blocks);
+    }
 
-        try (RandomAccessFile file = new RandomAccessFile(f, "rw")) {
-            file.setLength(0);
-            for (Block block : blocks.values()) {
-                if (file.getFilePointer() > 0) {
-                    file.writeBytes("\n");
-                }
-                String type = "d";
-                if (!block.isDataBlock()) {
-                    type = "c";
-                }
-                file.writeBytes(block.getUri().toString() + "#" + block.getSegmentId() + "#" + block.getId() + "#" + type);
-            }
-        }
+    private File getBlockListFile() {
+        return new File(plugin.getPluginDirectory() + plugin.getBlockListFilename(siteId));
     }
 
-    private synchronized void loadBlockUris() throws IOException {
-        try (RandomAccessFile file = new RandomAccessFile(
-                plugin.getPluginDirectory() + plugin.getBlockListFilename(siteId), "r")) {
-
-            String values;
-            while ((values = file.readLine()) != null) {
-                String[] aValues = values.split("#");
-                FreenetURI uri = new FreenetURI(aValues[0]);
-                int segmentId = Integer.parseInt(aValues[1]);
-                int blockId = Integer.parseInt(aValues[2]);
-                boolean isDataBlock = aValues[3].equals("d");
-                blocks.put(uri, new Block(uri, segmentId, blockId, isDataBlock));
+    // converts the text block list of older versions to the binary format
+    private void migrateBlockList() throws IOException {
+        File textFile = new File(plugin.getPluginDirectory() + plugin.getTextBlockListFilename(siteId));
+        if (textFile.exists() && !getBlockListFile().exists()) {
+            BlockTable textBlocks = BlockListFile.readText(textFile);
+            BlockListFile.write(getBlockListFile(), textBlocks);
+            log("block list converted (" + textBlocks.size() + " blocks)", 0, 2);
+            if (!textFile.delete()) {
+                log("Reinserter.migrateBlockList(): remove text block list was not successful.", 0);
             }
-
         }
     }
 
@@ -690,14 +909,15 @@ public final class Reinserter extends Thread {
         }
 
         // register uri
-        registerBlockUri(uri, true, true, level);
+        registerBlockUri(uri, true, true, ++parsedFileId, level);
 
         // constructs top level simple manifest (= first action on a new uri)
         if (metadata == null) {
-            FetchResult fetchResult = Client.fetch(uri, plugin.getFreenetClient());
-            BlockRepository.getInstance(plugin).saveOrUpdate(uri.toString(), fetchResult.asByteArray());
-
-            metadata = fetchManifest(uri, null, null);
+            metadata = metadataPrefetcher.getManifest(uri);
+            isActive(true);
+            if (isInterrupted()) {
+                return;
+            }
             if (metadata == null) {
                 log("no metadata", level);
                 return;
@@ -733,7 +953,13 @@ public final class Reinserter extends Thread {
         // redirect to submanifest
         if (metadata.isArchiveMetadataRedirect()) {
             log("document (" + getMetadataType(metadata) + "): " + metadata.getResolvedName(), level);
-            Metadata subManifest = fetchManifest(uri, metadata.getArchiveType(), metadata.getArchiveInternalName());
+            Metadata subManifest = metadataPrefetcher.getArchiveManifest(
+                    uri, metadata.getArchiveType(), metadata.getArchiveInternalName());
+            isActive(true);
+            if (subManifest == null) {
+                log("no metadata", level);
+                return;
+            }
             parseMetadata(uri, subManifest, level);
             return;
         }
@@ -750,7 +976,7 @@ public final class Reinserter extends Thread {
             FreenetURI targetUri = metadata.getSingleTarget();
             log("-> redirect to: " + targetUri, level);
             registerManifestUri(targetUri, level);
-            registerBlockUri(targetUri, true, true, level);
+            registerBlockUri(targetUri, true, true, ++parsedFileId, level);
             return;
         }
 
@@ -766,6 +992,7 @@ public final class Reinserter extends Thread {
             // register blocks
             Metadata metadata2 = (Metadata) metadata.clone();
             SplitFileSegmentKeys[] segmentKeys = metadata2.grabSegmentKeys();
+            int fileId = ++parsedFileId;
             for (int i = 0; i < segmentKeys.length; i++) {
                 int dataBlocks = segmentKeys[i].getDataBlocks();
                 int checkBlocks = segmentKeys[i].getCheckBlocks();
@@ -774,55 +1001,80 @@ public final class Reinserter extends Thread {
                 for (int j = 0; j < dataBlocks + checkBlocks; j++) {
                     FreenetURI splitUri = segmentKeys[i].getKey(j, null, false).getURI();
                     log("block: " + splitUri, level + 1, 2);
-                    registerBlockUri(splitUri, (j == 0), (j < dataBlocks), level + 1);
+                    registerBlockUri(splitUri, (j == 0), (j < dataBlocks), fileId, level + 1);
                 }
             }
 
             // create metadata from splitfile (if not simple splitfile)
             if (!metadata.isSimpleSplitfile()) {
-                // TODO: move fetch to net package
-                FetchContext fetchContext = pr.getHLSimpleClient().getFetchContext();
-                ClientContext clientContext = pr.getNode().clientCore.clientContext;
-                FetchWaiter fetchWaiter = new FetchWaiter(plugin.getFreenetClient());
-                List<COMPRESSOR_TYPE> decompressors = new LinkedList<>();
                 if (metadata.isCompressed()) {
                     log("is compressed: " + metadata.getCompressionCodec(), level + 1);
-                    decompressors.add(metadata.getCompressionCodec());
                 } else {
                     log("is not compressed", level + 1);
                 }
-                SplitfileGetCompletionCallback cb = new SplitfileGetCompletionCallback(fetchWaiter);
-                VerySimpleGetter vsg = new VerySimpleGetter((short) 2, null, plugin.getFreenetClient());
-                SplitFileFetcher sf = new SplitFileFetcher(metadata, cb, vsg,
-                        fetchContext, true, decompressors,
-                        metadata.getClientMetadata(), 0L, metadata.topDontCompress,
-                        metadata.topCompatibilityMode.code, false, metadata.getResolvedURI(),
-                        true, clientContext);
-                sf.schedule(clientContext);
-
-                // fetchWaiter.waitForCompletion();
-                while (cb.getDecompressedData() == null) { // workaround because in some cases fetchWaiter.waitForCompletion() never finished
-                    if (isInterrupted()) {
-                        return;
-                    }
+                metadata = metadataPrefetcher.getSplitfileMetadata(metadata);
+                isActive(true);
+                if (metadata == null) {
+                    return;
+                }
+                parseMetadata(null, metadata, level + 1);
+            }
+        }
+    }
 
-                    if (!isActive()) {
-                        throw new FetchFailedException("Manifest cannot be fetched");
-                    }
+    /**
+     * Fetches and decompresses the data of a splitfile that holds metadata.
+     *
+     * @return metadata or null if interrupted
+     */
+    Metadata fetchSplitfileMetadata(Metadata metadata)
+            throws FetchFailedException, FetchException, MetadataParseException, IOException {
+        // TODO: move fetch to net package
+        FetchContext fetchContext = pr.getHLSimpleClient().getFetchContext();
+        ClientContext clientContext = pr.getNode().clientCore.clientContext;
+        List<COMPRESSOR_TYPE> decompressors = new LinkedList<>();
+        if (metadata.isCompressed()) {
+            decompressors.add(metadata.getCompressionCodec());
+        }
+        SplitfileGetCompletionCallback cb = new SplitfileGetCompletionCallback();
+        VerySimpleGetter vsg = new VerySimpleGetter((short) 2, null, plugin.getFreenetClient());
+        SplitFileFetcher sf = new SplitFileFetcher(metadata, cb, vsg,
+                fetchContext, true, decompressors,
+                metadata.getClientMetadata(), 0L, metadata.topDontCompress,
+                metadata.topCompatibilityMode.code, false, metadata.getResolvedURI(),
+                true, clientContext);
+        sf.schedule(clientContext);
+
+        // wait for the callback (in short steps to notice an interrupt of the reinserter)
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(SingleJob.MAX_LIFETIME);
+        try {
+            while (true) {
+                if (isInterrupted() || Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                long timeLeft = deadline - System.currentTimeMillis();
+                if (timeLeft <= 0) {
+                    throw new FetchFailedException("Manifest cannot be fetched (timeout)");
+                }
 
-                    synchronized (this) {
-                        try {
-                            wait(100);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            return;
-                        }
+                try {
+                    return cb.get(Math.min(timeLeft, 1000), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ignored) {
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof FetchException) {
+                        throw (FetchException) e.getCause();
                     }
+                    if (e.getCause() instanceof MetadataParseException) {
+                        throw (MetadataParseException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
                 }
-                sf.cancel(clientContext);
-                metadata = fetchManifest(cb.getDecompressedData(), null, null);
-                parseMetadata(null, metadata, level + 1);
             }
+        } finally {
+            sf.cancel(clientContext);
         }
     }
 
@@ -866,6 +1118,10 @@ public final class Reinserter extends Thread {
         return plugin;
     }
 
+    public int getSiteId() {
+        return siteId;
+    }
+
     private static class FetchBlocksResult {
 
         int successful = 0;
@@ -884,53 +1140,90 @@ public final class Reinserter extends Thread {
         }
     }
 
-    private class SplitfileGetCompletionCallback implements GetCompletionCallback {
-
-        private final FetchWaiter fetchWaiter;
-        private byte[] decompressedSplitFileData = null;
-
-        SplitfileGetCompletionCallback(FetchWaiter fetchWaiter) {
-            this.fetchWaiter = fetchWaiter;
+    /**
+     * Completes with the metadata stored in a splitfile. The data is
+     * decompressed while it is streamed from the fetcher, so only the
+     * decompressed metadata is held in memory.
+     */
+    private class SplitfileGetCompletionCallback extends FutureTask<Metadata> implements GetCompletionCallback {
+
+        SplitfileGetCompletionCallback() {
+            super(new Callable<Metadata>() {
+                @Override
+                public Metadata call() {
+                    return null; // completed by the fetcher, never run
+                }
+            });
         }
 
         @Override
         public void onFailure(FetchException e, ClientGetState state, ClientContext context) {
-            fetchWaiter.onFailure(e, null);
+            setException(e);
         }
 
         @Override
-        public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata,
+        public void onSuccess(final StreamGenerator streamGenerator, ClientMetadata clientMetadata,
                               List<? extends Compressor> decompressors,
-                              ClientGetState state, ClientContext context) {
+                              ClientGetState state, final ClientContext context) {
             try {
 
-                // get data
-                ByteArrayOutputStream rawOutStream = new ByteArrayOutputStream();
-                streamGenerator.writeTo(rawOutStream, null);
-                rawOutStream.close();
-                byte[] compressedSplitFileData = rawOutStream.toByteArray();
-
-                // decompress (if necessary)
-                if (decompressors.size() > 0) {
-                    try (ByteArrayInputStream compressedInStream = new ByteArrayInputStream(compressedSplitFileData);
-                         ByteArrayOutputStream decompressedOutStream = new ByteArrayOutputStream()) {
-                        decompressors.get(0).decompress(compressedInStream, decompressedOutStream, Integer.MAX_VALUE, -1);
-                        decompressedSplitFileData = decompressedOutStream.toByteArray();
-                    }
-                    fetchWaiter.onSuccess(null, null);
+                ByteArrayOutputStream metadataStream = new ByteArrayOutputStream();
+                if (decompressors.isEmpty()) {
+                    streamGenerator.writeTo(metadataStream, context);
                 } else {
-                    decompressedSplitFileData = compressedSplitFileData;
+                    // decompress while the fetcher writes into the pipe
+                    final PipedOutputStream rawOutStream = new PipedOutputStream();
+                    final PipedInputStream rawInStream = new PipedInputStream(rawOutStream, 32768);
+                    final AtomicBoolean inputClosed = new AtomicBoolean();
+                    final IOException[] writeFailure = new IOException[1];
+                    Thread writer = new Thread("KeepAlive metadata stream " + siteId) {
+                        @Override
+                        public void run() {
+                            // the failure is kept before the pipe is closed and the reader sees its end
+                            try {
+                                streamGenerator.writeTo(rawOutStream, context);
+                            } catch (IOException e) {
+                                if (!inputClosed.get()) {
+                                    writeFailure[0] = e;
+                                }
+                            } finally {
+                                try {
+                                    rawOutStream.close();
+                                } catch (IOException e) {
+                                    // closed by the reader
+                                }
+                            }
+                        }
+                    };
+                    writer.setDaemon(true);
+                    writer.start();
+                    try {
+                        decompressors.get(0).decompress(rawInStream, metadataStream, Integer.MAX_VALUE, -1);
+                    } finally {
+                        // a writer blocked on the full pipe fails as soon as the input is closed
+                        inputClosed.set(true);
+                        rawInStream.close();
+                        writer.join(METADATA_WRITER_TIMEOUT);
+                    }
+                    if (writer.isAlive()) {
+                        writer.interrupt();
+                        throw new IOException("metadata stream not finished in time");
+                    }
+                    if (writeFailure[0] != null) {
+                        throw writeFailure[0];
+                    }
                 }
+                set(fetchManifest(metadataStream.toByteArray(), null, null));
 
             } catch (IOException e) {
                 plugin.log("SplitfileGetCompletionCallback.onSuccess(): " + e.getMessage());
+                setException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel(false);
             }
         }
 
-        byte[] getDecompressedData() {
-            return decompressedSplitFileData;
-        }
-
         @Override
         public void onBlockSetFinished(ClientGetState state, ClientContext context) {
         }
@@ -1029,72 +1322,50 @@ public final class Reinserter extends Thread {
         }
     }
 
-    private Metadata fetchManifest(FreenetURI uri, ARCHIVE_TYPE archiveType, String manifestName)
+    Metadata fetchManifest(FreenetURI uri, ARCHIVE_TYPE archiveType, String manifestName)
             throws FetchException, IOException {
         FetchResult result = Client.fetch(uri, plugin.getFreenetClient());
 
-        return fetchManifest(result.asByteArray(), archiveType, manifestName);
+        return fetchManifest(result.asBucket(), archiveType, manifestName);
+    }
+
+    Metadata fetchManifest(byte[] data, ARCHIVE_TYPE archiveType, String manifestName) throws IOException {
+        return fetchManifest(new ArrayBucket(data), archiveType, manifestName);
     }
 
-    private Metadata fetchManifest(byte[] data, ARCHIVE_TYPE archiveType, String manifestName) throws IOException {
+    /**
+     * Constructs the metadata directly or from the manifest inside an archive,
+     * streaming through the data once.
+     */
+    Metadata fetchManifest(Bucket data, ARCHIVE_TYPE archiveType, String manifestName) throws IOException {
         Metadata metadata = null;
-        try (ByteArrayInputStream fetchedDataStream = new ByteArrayInputStream(data)) {
+        try (InputStream fetchedDataStream = new BufferedInputStream(data.getInputStream())) {
 
             if (manifestName == null) {
                 manifestName = ".metadata";
             }
 
+            // the magic bytes tell whether the data is an archive
+            ARCHIVE_TYPE detectedType = ArchiveExtractor.detect(fetchedDataStream);
+            if (detectedType != null) {
+                archiveType = detectedType;
+            }
+
             if (archiveType == null) {
                 // try to construct metadata directly
                 try {
                     metadata = Metadata.construct(data);
                 } catch (MetadataParseException ignored) {
                 }
-            }
-
-            if (metadata == null) {
+            } else {
                 // unzip and construct metadata
-
                 try {
-
-                    InputStream inStream = null;
-                    String entryName = null;
-
-                    // get archive stream (try if archive type unknown)
-                    if (archiveType == ARCHIVE_TYPE.TAR || archiveType == null) {
-                        inStream = new TarInputStream(fetchedDataStream);
-                        entryName = ((TarInputStream) inStream).getNextEntry().getName();
-                        archiveType = ARCHIVE_TYPE.TAR;
-                    }
-                    if (archiveType == ARCHIVE_TYPE.ZIP) {
-                        inStream = new ZipInputStream(fetchedDataStream);
-                        entryName = ((ZipInputStream) inStream).getNextEntry().getName();
-                        archiveType = ARCHIVE_TYPE.ZIP;
+                    byte[] manifest = ArchiveExtractor.extract(fetchedDataStream, archiveType, manifestName);
+                    if (manifest != null) {
+                        metadata = Metadata.construct(manifest);
                     }
-
-                    // construct metadata
-                    while (inStream != null && entryName != null) {
-                        if (entryName.equals(manifestName)) {
-                            byte[] buf = new byte[32768];
-                            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-                            int bytes;
-                            while ((bytes = inStream.read(buf)) > 0) {
-                                outStream.write(buf, 0, bytes);
-                            }
-                            outStream.close();
-                            metadata = Metadata.construct(outStream.toByteArray());
-                            break;
-                        }
-                        if (archiveType == ARCHIVE_TYPE.TAR) {
-                            entryName = ((TarInputStream) inStream).getNextEntry().getName();
-                        } else {
-                            entryName = ((ZipInputStream) inStream).getNextEntry().getName();
-                        }
-                    }
-
                 } catch (Exception e) {
-                    if (archiveType != null)
-                        log("unzip and construct metadata: " + e.getMessage(), 0, 2);
+                    log("unzip and construct metadata: " + e.getMessage(), 0, 2);
                 }
             }
 
@@ -1133,7 +1404,8 @@ public final class Reinserter extends Thread {
         }
     }
 
-    private void registerBlockUri(FreenetURI uri, boolean newSegment, boolean isDataBlock, int logTabLevel) {
+    private void registerBlockUri(FreenetURI uri, boolean newSegment, boolean isDataBlock, int fileId,
+                                  int logTabLevel) {
         if (uri != null) { // uri is null if metadata is created from splitfile
 
             // no reinsertion for SSK but go to sublevel
@@ -1141,7 +1413,7 @@ public final class Reinserter extends Thread {
                 log("-> no reinsertion of USK, SSK or KSK", logTabLevel, 2);
 
                 // check if uri already reinserted during this session
-            } else if (blocks.containsKey(Client.normalizeUri(uri))) {
+            } else if (blocks.contains(Client.normalizeUri(uri))) {
                 log("-> already registered block", logTabLevel, 2);
 
                 // register
@@ -1150,8 +1422,7 @@ public final class Reinserter extends Thread {
                     parsedSegmentId++;
                     parsedBlockId = -1;
                 }
-                uri = Client.normalizeUri(uri);
-                blocks.put(uri, new Block(uri, parsedSegmentId, ++parsedBlockId, isDataBlock));
+                blocks.add(Client.normalizeUri(uri), parsedSegmentId, ++parsedBlockId, isDataBlock, fileId);
                 log("-> registered block", logTabLevel, 2);
             }
 
@@ -1159,35 +1430,130 @@ public final class Reinserter extends Thread {
     }
 
     public void registerBlockFetchSuccess(Block block) {
-        segments.get(block.getSegmentId()).regFetchSuccess(block.isFetchSuccessful());
+        Segment segment = segmentSource.get(block.getSegmentId());
+        if (segment != null) { // null if a cancelled fetch finishes late
+            segment.regFetchSuccess(block.isFetchSuccessful());
+        }
+        journal.append(block.isFetchSuccessful() ? ProgressJournal.FETCH_OK : ProgressJournal.FETCH_FAILED,
+                block.getSegmentId(), block.getId());
+        if (block.getHistory() != null) {
+            block.getHistory().registerFetch(block.isFetchSuccessful());
+            BlockHistoryRepository.getInstance(plugin).save(block.getHistory());
+        }
     }
 
-    public synchronized void updateSegmentStatistic(Segment segment, boolean success) {
-        String successProp = plugin.getProp("success_segments_" + siteId);
-        if (success) {
-            successProp = successProp.substring(0, segment.getId()) + "1" + successProp.substring(segment.getId() + 1);
+    public void registerBlockInsertResult(Block block) {
+        journal.append(block.isInsertSuccessful() ? ProgressJournal.INSERT_OK : ProgressJournal.INSERT_FAILED,
+                block.getSegmentId(), block.getId());
+        if (block.isInsertSuccessful() && block.getHistory() != null) {
+            block.getHistory().registerInsert();
+            BlockHistoryRepository.getInstance(plugin).save(block.getHistory());
         }
-        plugin.setProp("success_segments_" + siteId, successProp);
-        plugin.saveProp();
     }
 
-    public synchronized void updateBlockStatistic(int id, int success, int failed) {
-        String[] successProp = plugin.getProp("success_" + siteId).split(",");
-        successProp[id * 2] = String.valueOf(success);
-        successProp[id * 2 + 1] = String.valueOf(failed);
-        saveSuccessToProp(successProp);
+    /**
+     * Replays the journal of an interrupted pass. A pass counts as started if
+     * the journal says so, even if the prop segment_ was not saved since.
+     *
+     * @return the pass is continued
+     */
+    private boolean resumeFromJournal(int maxSegmentId) throws IOException {
+        try {
+            journal.replay();
+        } catch (IOException e) {
+            log("journal cannot be read: " + e.getMessage(), 0);
+            journal.reset();
+            return plugin.getIntProp("segment_" + siteId) != -1;
+        }
+        if (!journal.isPassStarted() && plugin.getIntProp("segment_" + siteId) == -1) {
+            return false;
+        }
+
+        // segments finished after the last saving of the properties
+        int segment = plugin.getIntProp("segment_" + siteId);
+        int lastDoneSegment = segment;
+        while (lastDoneSegment < maxSegmentId && journal.isSegmentDone(lastDoneSegment + 1)) {
+            lastDoneSegment++;
+        }
+        if (lastDoneSegment != segment) {
+            log("journal: segments up to " + lastDoneSegment + " already finished", 0);
+            plugin.setIntProp("segment_" + siteId, lastDoneSegment);
+            plugin.saveProp();
+        }
+        return true;
+    }
+
+    private void applyJournal(Segment segment) {
+        int inserted = 0;
+        for (int i = 0; i < segment.size(); i++) {
+            Block block = segment.getBlock(i);
+            if (journal.isInserted(segment.getId(), block.getId())) {
+                block.setInsertSuccessful(true);
+                block.setInsertDone(true);
+                inserted++;
+            }
+        }
+        if (inserted > 0) {
+            log(segment, "-> " + inserted + " blocks already inserted in this pass (journal)", 1, 1);
+        }
     }
 
-    private void saveSuccessToProp(String[] success) {
-        StringBuilder newSuccess = new StringBuilder();
-        for (int i = 0; i < success.length; i++) {
-            if (i > 0) {
-                newSuccess.append(",");
+    /**
+     * Takes over the statistics of the unchanged segments verified before the
+     * block list changed (in the running or the last finished pass) and marks
+     * them as done in the journal, so only new content is probed.
+     *
+     * @param previousStatistics statistics of the previous list
+     */
+    private void carryOverSegments(EditionDiff editionDiff, SiteStatistics previousStatistics) {
+        int carriedOver = 0;
+        for (int i = 0; i < statistics.getSegmentCount(); i++) {
+            int previousId = editionDiff.getVerifiedSegmentId(i);
+            if (previousId == -1 || previousId >= previousStatistics.getSegmentCount()) {
+                continue;
             }
-            newSuccess.append(success[i]);
+
+            statistics.copySegment(previousStatistics, previousId, i);
+            journal.append(ProgressJournal.SEGMENT_DONE, i, -1);
+            carriedOver++;
+        }
+
+        if (carriedOver > 0) {
+            log(carriedOver + " unchanged segments verified before are not probed again in this pass", 0);
         }
-        plugin.setProp("success_" + siteId, newSuccess.toString());
-        plugin.saveProp();
+    }
+
+    private void loadBlockHistory(Segment segment) {
+        List<String> routingKeys = new ArrayList<>(segment.size());
+        for (int i = 0; i < segment.size(); i++) {
+            routingKeys.add(BlockHistory.getRoutingKey(segment.getBlock(i).getRoutingKey()));
+        }
+        Map<String, BlockHistory> histories = BlockHistoryRepository.getInstance(plugin).findAll(routingKeys);
+        for (int i = 0; i < segment.size(); i++) {
+            segment.getBlock(i).setHistory(histories.get(routingKeys.get(i)));
+        }
+    }
+
+    private boolean isFresh(Block block) {
+        return block.getHistory() != null &&
+                block.getHistory().isFresh(TimeUnit.HOURS.toMillis(plugin.getIntProp("block_freshness")));
+    }
+
+    public void updateSegmentStatistic(Segment segment, boolean success) {
+        if (success) {
+            statistics.setSegmentAvailable(segment.getId());
+        }
+    }
+
+    public void updateBlockStatistic(int id, int success, int failed) {
+        statistics.setBlocks(id, success, failed);
+    }
+
+    private void updateAvailabilityStatistic(Segment segment, double tolerance) {
+        // estimate and confidence of the file in percent
+        statistics.setAvailability(segment.getId(),
+                (int) (availabilityEstimator.getEstimate(segment.getFileId()) * 100),
+                (int) (availabilityEstimator.getConfidence(segment.getFileId(), tolerance) * 100));
     }
 
     public boolean isActive() {
@@ -1260,8 +1626,4 @@ public final class Reinserter extends Thread {
             log(segment, cMessage + " = null", 1, 2);
         }
     }
-
-    public ArrayList<Segment> getSegments() {
-        return segments;
-    }
 }
@@ -0,0 +1,264 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import keepalive.Plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the reinserters of several sites at the same time. Sites are picked
+ * round-robin starting at the site the reinsertion was started with and
+ * every running site gets its own time slot.
+ */
+public final class ReinserterScheduler extends Thread {
+
+    // minimal number of parallel jobs a single site should get
+    private static final int MIN_POWER_PER_SITE = 2;
+
+    // heap a single running site may need (segment buffers, block lists)
+    private static final long HEAP_PER_SITE = 64L * 1024 * 1024;
+
+    private final Plugin plugin;
+    private final LinkedHashMap<Integer, Reinserter> running = new LinkedHashMap<>();
+    private final LinkedHashMap<Integer, Long> startTimes = new LinkedHashMap<>();
+
+    // interrupted reinserters that did not finish yet, their site must not be started again
+    private final Map<Integer, Reinserter> stopping = new HashMap<>();
+
+    // sites stopped on the admin page, started again only on request
+    private final Set<Integer> stoppedSites = new HashSet<>();
+    private int nextSiteId;
+
+    /**
+     * @param stoppingReinserters reinserters of a previous scheduler that may still be running
+     */
+    public ReinserterScheduler(Plugin plugin, int siteId, Collection<Reinserter> stoppingReinserters) {
+        this.plugin = plugin;
+        this.nextSiteId = siteId;
+        for (Reinserter reinserter : stoppingReinserters) {
+            if (reinserter.isAlive()) {
+                stopping.put(reinserter.getSiteId(), reinserter);
+            }
+        }
+        this.setName("KeepAlive Reinserter Scheduler");
+    }
+
+    @Override
+    public void run() {
+        try {
+
+            while (!isInterrupted()) {
+                synchronized (this) {
+                    stopTimedOut();
+                    startSites();
+
+                    // remember the oldest running site to resume there after a restart
+                    if (!running.isEmpty()) {
+                        plugin.setIntProp("active", running.keySet().iterator().next());
+                        plugin.saveProp();
+                    }
+
+                    wait(TimeUnit.SECONDS.toMillis(10));
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            plugin.log("ReinserterScheduler.run()", e);
+        } finally {
+            synchronized (this) {
+                for (Reinserter reinserter : new ArrayList<>(running.values())) {
+                    stop(reinserter);
+                }
+                startTimes.clear();
+            }
+            plugin.log("reinserter scheduler stopped", 1);
+        }
+    }
+
+    private void stopTimedOut() {
+        long timeslot = TimeUnit.HOURS.toMillis(plugin.getIntProp("single_url_timeslot"));
+        Iterator<Map.Entry<Integer, Long>> iterator = startTimes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Long> entry = iterator.next();
+            if (System.currentTimeMillis() - entry.getValue() > timeslot) {
+                iterator.remove();
+                stop(running.get(entry.getKey()));
+                plugin.log("Terminated reinserter " + entry.getKey() + " by timeout");
+            }
+        }
+    }
+
+    private void startSites() {
+        int[] ids = plugin.getIds();
+        if (ids == null || ids.length == 0) {
+            return;
+        }
+
+        int parallelSites = Math.min(getParallelSites(), ids.length);
+        for (int tries = 0; running.size() < parallelSites && tries < ids.length; tries++) {
+            int id = nextSiteId(ids);
+            if (!running.containsKey(id) && !isStopping(id) && !stoppedSites.contains(id)) {
+                Reinserter reinserter = new Reinserter(plugin, id, this);
+                running.put(id, reinserter);
+                startTimes.put(id, System.currentTimeMillis());
+                reinserter.start();
+            }
+        }
+    }
+
+    // returns the current site of the rotation and moves on to the next one
+    private int nextSiteId(int[] ids) {
+        int i = 0;
+        while (i < ids.length && ids[i] < nextSiteId) {
+            i++;
+        }
+        if (i == ids.length) {
+            i = 0;
+        }
+
+        int id = ids[i];
+        nextSiteId = (i < ids.length - 1) ? ids[i + 1] : ids[0];
+        return id;
+    }
+
+    // the site stays blocked until the interrupted reinserter has really finished
+    private void stop(Reinserter reinserter) {
+        running.remove(reinserter.getSiteId());
+        startTimes.remove(reinserter.getSiteId());
+        stopping.put(reinserter.getSiteId(), reinserter);
+        reinserter.interrupt();
+    }
+
+    private boolean isStopping(int siteId) {
+        Reinserter reinserter = stopping.get(siteId);
+        if (reinserter != null && !reinserter.isAlive()) {
+            stopping.remove(siteId);
+            return false;
+        }
+        return reinserter != null;
+    }
+
+    synchronized void onReinserterFinished(Reinserter reinserter) {
+        if (running.get(reinserter.getSiteId()) == reinserter) {
+            running.remove(reinserter.getSiteId());
+            startTimes.remove(reinserter.getSiteId());
+        }
+        if (stopping.get(reinserter.getSiteId()) == reinserter) {
+            stopping.remove(reinserter.getSiteId());
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stops the site until it is started again with {@link #startSite(int)}.
+     */
+    public synchronized void stopSite(int siteId) {
+        stoppedSites.add(siteId);
+        Reinserter reinserter = running.get(siteId);
+        if (reinserter != null) {
+            stop(reinserter);
+        }
+    }
+
+    /**
+     * Allows a stopped site again and makes it the next one of the rotation.
+     */
+    public synchronized void startSite(int siteId) {
+        stoppedSites.remove(siteId);
+        nextSiteId = siteId;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the reinserter of the site (running or stopping) has finished.
+     *
+     * @return no reinserter of the site is alive anymore
+     */
+    public boolean awaitFinished(int siteId, long timeout) throws InterruptedException {
+        Reinserter reinserter;
+        synchronized (this) {
+            reinserter = running.containsKey(siteId) ? running.get(siteId) : stopping.get(siteId);
+        }
+        if (reinserter == null || reinserter == Thread.currentThread()) {
+            return true;
+        }
+        reinserter.join(timeout);
+        return !reinserter.isAlive();
+    }
+
+    public synchronized void forgetSite(int siteId) {
+        stoppedSites.remove(siteId);
+    }
+
+    /**
+     * Interrupts the scheduler and all its reinserters.
+     *
+     * @return reinserters that may still be running
+     */
+    public synchronized List<Reinserter> shutdown() {
+        for (Reinserter reinserter : new ArrayList<>(running.values())) {
+            stop(reinserter);
+        }
+        interrupt();
+        return getStoppingReinserters();
+    }
+
+    /**
+     * @return interrupted reinserters that may still be running
+     */
+    public synchronized List<Reinserter> getStoppingReinserters() {
+        return new ArrayList<>(stopping.values());
+    }
+
+    public synchronized boolean isRunning(int siteId) {
+        return running.containsKey(siteId);
+    }
+
+    public synchronized List<Integer> getRunningSites() {
+        return new ArrayList<>(running.keySet());
+    }
+
+    /**
+     * Number of sites reinserted at the same time. If not configured it is
+     * sized to the cores, the heap and the power of the node.
+     */
+    public int getParallelSites() {
+        int parallelSites = plugin.getIntProp("parallel_sites");
+        if (parallelSites > 0) {
+            return parallelSites;
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int byHeap = (int) (Runtime.getRuntime().maxMemory() / HEAP_PER_SITE);
+        int byPower = plugin.getIntProp("power") / MIN_POWER_PER_SITE;
+        return Math.max(1, Math.min(cores, Math.min(byHeap, byPower)));
+    }
+}
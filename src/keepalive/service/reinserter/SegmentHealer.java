@@ -0,0 +1,218 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import freenet.client.FECCodec;
+import freenet.client.Metadata.SplitfileAlgorithm;
+import freenet.keys.CHKBlock;
+import freenet.support.api.Bucket;
+import keepalive.model.Block;
+import keepalive.model.Segment;
+import keepalive.service.net.BlockBufferPool;
+import keepalive.service.net.PooledBucket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Heals a segment on the {@link HealExecutor}: decodes the missing data
+ * blocks from the fetched blocks and encodes all check blocks again, so
+ * every block of the segment has data to insert. The keys of the healed
+ * blocks are verified locally before any of them is inserted.
+ */
+class SegmentHealer implements Callable<Boolean> {
+
+    private final Reinserter reinserter;
+    private final Segment segment;
+    private final BlockBufferPool bufferPool;
+    private final long submittedAt = System.currentTimeMillis();
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    SegmentHealer(Reinserter reinserter, Segment segment, BlockBufferPool bufferPool) {
+        this.reinserter = reinserter;
+        this.segment = segment;
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public Boolean call() throws IOException {
+        startedAt = System.currentTimeMillis();
+        try {
+            return heal();
+        } finally {
+            finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    private boolean heal() throws IOException {
+        // init (the state of the blocks is taken once, a late fetch must not change it while healing)
+        int size = segment.size();
+        int dataSize = segment.dataSize();
+        boolean[] present = new boolean[size];
+        PooledBucket[] inPlace = new PooledBucket[size];
+        byte[][] dataBlocks = new byte[dataSize][];
+        byte[][] checkBlocks = new byte[size - dataSize][];
+        try {
+            for (int i = 0; i < size; i++) {
+                Block block = segment.getBlock(i);
+                Bucket bucket = block.getBucket();
+                present[i] = block.isFetchSuccessful() && bucket != null;
+                byte[] buffer;
+                if (present[i] && bucket instanceof PooledBucket) {
+                    buffer = ((PooledBucket) bucket).pin();
+                    inPlace[i] = (PooledBucket) bucket;
+                } else {
+                    buffer = getHealingBuffer(present[i] ? bucket : null);
+                }
+                if (i < dataSize) {
+                    dataBlocks[i] = buffer;
+                } else {
+                    checkBlocks[i - dataSize] = buffer;
+                }
+            }
+        } catch (IOException e) {
+            releaseHealingBuffers(inPlace, dataBlocks, checkBlocks);
+            throw e;
+        }
+        boolean[] dataBlocksPresent = Arrays.copyOfRange(present, 0, dataSize);
+        boolean[] checkBlocksPresent = Arrays.copyOfRange(present, dataSize, size);
+
+        // decode
+        FECCodec codec = FECCodec.getInstance(SplitfileAlgorithm.ONION_STANDARD);
+        reinserter.log(segment, "start decoding", 0, 1);
+        try {
+            codec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, CHKBlock.DATA_LENGTH);
+            reinserter.log(segment, "-> decoding successful", 1, 2);
+        } catch (Exception e) {
+            reinserter.log(segment, "<b>segment decoding (FEC) failed, do not reinsert</b>", 1, 2);
+            releaseHealingBuffers(inPlace, dataBlocks, checkBlocks);
+            return false;
+        }
+
+        // encode (= build all data blocks  and check blocks from data blocks)
+        reinserter.log(segment, "start encoding", 0, 1);
+        try {
+            codec.encode(dataBlocks, checkBlocks, checkBlocksPresent, CHKBlock.DATA_LENGTH);
+            reinserter.log(segment, "-> encoding successful", 1, 2);
+        } catch (Exception e) {
+            reinserter.log(segment, "<b>segment encoding (FEC) failed, do not reinsert</b>", 1, 2);
+            releaseHealingBuffers(inPlace, dataBlocks, checkBlocks);
+            return false;
+        }
+
+        // verify the keys of the healed blocks before they are queued for insertion
+        verifyHealedBlocks(present, dataBlocks, checkBlocks);
+
+        // finish (fetched blocks keep their buckets, the buffers were used in place)
+        for (int i = 0; i < dataBlocks.length; i++) {
+            reinserter.log(segment, "dataBlock_" + i, dataBlocks[i]);
+            setHealedBucket(segment.getDataBlock(i), inPlace[i], dataBlocks[i]);
+        }
+        for (int i = 0; i < checkBlocks.length; i++) {
+            reinserter.log(segment, "checkBlock_" + i, checkBlocks[i]);
+            setHealedBucket(segment.getCheckBlock(i), inPlace[dataSize + i], checkBlocks[i]);
+        }
+        return true;
+    }
+
+    private void verifyHealedBlocks(boolean[] present, byte[][] dataBlocks, byte[][] checkBlocks) {
+        List<Block> blocks = new ArrayList<>();
+        List<byte[]> data = new ArrayList<>();
+        for (int i = 0; i < segment.size(); i++) {
+            if (!present[i]) {
+                blocks.add(segment.getBlock(i));
+                data.add(i < dataBlocks.length ? dataBlocks[i] : checkBlocks[i - dataBlocks.length]);
+            }
+        }
+
+        int mismatches = new BlockVerifier(blocks.toArray(new Block[blocks.size()]),
+                data.toArray(new byte[data.size()][])).verify();
+        if (mismatches > 0) {
+            reinserter.log(segment, "<b>" + mismatches + " of " + blocks.size() +
+                    " healed blocks do not match their key, not reinserted</b>", 1, 1);
+        } else {
+            reinserter.log(segment, "-> keys of " + blocks.size() + " healed blocks verified", 1, 2);
+        }
+    }
+
+    // copy of the fetched data or a cleared buffer to decode into
+    private byte[] getHealingBuffer(Bucket fetched) throws IOException {
+        byte[] buffer = bufferPool.acquire();
+        int read = 0;
+        if (fetched != null) {
+            try (InputStream in = fetched.getInputStream()) {
+                int count;
+                while (read < buffer.length && (count = in.read(buffer, read, buffer.length - read)) > 0) {
+                    read += count;
+                }
+            } catch (IOException e) {
+                bufferPool.release(buffer);
+                throw e;
+            }
+        }
+        Arrays.fill(buffer, read, buffer.length, (byte) 0);
+        return buffer;
+    }
+
+    private void setHealedBucket(Block block, PooledBucket inPlace, byte[] buffer) {
+        if (inPlace != null) {
+            inPlace.unpin();
+        } else {
+            Bucket previous = block.getBucket();
+            block.setBucket(bufferPool.wrap(buffer));
+            if (previous != null) {
+                previous.free();
+            }
+        }
+    }
+
+    private void releaseHealingBuffers(PooledBucket[] inPlace, byte[][] dataBlocks, byte[][] checkBlocks) {
+        for (int i = 0; i < dataBlocks.length; i++) {
+            releaseHealingBuffer(inPlace[i], dataBlocks[i]);
+        }
+        for (int i = 0; i < checkBlocks.length; i++) {
+            releaseHealingBuffer(inPlace[dataBlocks.length + i], checkBlocks[i]);
+        }
+    }
+
+    private void releaseHealingBuffer(PooledBucket inPlace, byte[] buffer) {
+        if (inPlace != null) {
+            inPlace.unpin();
+        } else if (buffer != null) {
+            bufferPool.release(buffer);
+        }
+    }
+
+    Segment getSegment() {
+        return segment;
+    }
+
+    long getQueueTime() {
+        return startedAt > 0 ? startedAt - submittedAt : 0;
+    }
+
+    long getHealTime() {
+        return startedAt > 0 ? finishedAt - startedAt : 0;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import keepalive.model.Block;
+import keepalive.model.Segment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Segments of a site read one after the other from the memory-mapped block
+ * list. The next segments are decoded in the background, only segments
+ * between the completion pointer and the segment in work are held in memory
+ * and a segment is released as soon as the pointer passes it.
+ */
+class SegmentSource implements Closeable {
+
+    // segments decoded in advance
+    private static final int LOOK_AHEAD = 2;
+
+    private final Reinserter reinserter;
+    private final BlockListFile blockList;
+    private final ExecutorService decoder;
+    private final Map<Integer, Future<Block[]>> decoded = new HashMap<>();
+    private final Map<Integer, Segment> openSegments = new ConcurrentHashMap<>();
+    private int nextSegmentId;
+
+    SegmentSource(Reinserter reinserter, BlockListFile blockList) {
+        this.reinserter = reinserter;
+        this.blockList = blockList;
+        decoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "KeepAlive block list " + SegmentSource.this.reinserter.getSiteId());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    BlockListFile getBlockList() {
+        return blockList;
+    }
+
+    int getMaxSegmentId() {
+        return blockList.getMaxSegmentId();
+    }
+
+    int getNextSegmentId() {
+        return nextSegmentId;
+    }
+
+    /**
+     * Continues with a later segment (e.g. when a pass is resumed).
+     */
+    void setNextSegmentId(int segmentId) {
+        nextSegmentId = segmentId;
+    }
+
+    boolean hasNext() {
+        return nextSegmentId <= getMaxSegmentId();
+    }
+
+    Segment next() throws IOException, InterruptedException {
+        int segmentId = nextSegmentId++;
+        Future<Block[]> future = decoded.remove(segmentId);
+        Block[] blocks = future != null ? get(future) : blockList.readSegment(segmentId);
+        Segment segment = new Segment(reinserter, segmentId, blocks, blockList.getDataBlocksCount(segmentId));
+        openSegments.put(segmentId, segment);
+
+        // decode the following segments while this one is in work
+        for (int id = nextSegmentId; id <= Math.min(getMaxSegmentId(), segmentId + LOOK_AHEAD); id++) {
+            if (!decoded.containsKey(id)) {
+                decoded.put(id, decoder.submit(new Decode(id)));
+            }
+        }
+        return segment;
+    }
+
+    private static Block[] get(Future<Block[]> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return segment that is not finished yet or null
+     */
+    Segment get(int segmentId) {
+        return openSegments.get(segmentId);
+    }
+
+    // called when the completion pointer passed the segment
+    void release(int segmentId) {
+        openSegments.remove(segmentId);
+    }
+
+    @Override
+    public void close() throws IOException {
+        decoder.shutdownNow();
+        decoded.clear();
+        for (Segment segment : openSegments.values()) {
+            segment.release(); // buffers of unfinished segments go back to the pool
+        }
+        openSegments.clear();
+        blockList.close();
+    }
+
+    private class Decode implements Callable<Block[]> {
+
+        private final int segmentId;
+
+        Decode(int segmentId) {
+            this.segmentId = segmentId;
+        }
+
+        @Override
+        public Block[] call() throws IOException {
+            return blockList.readSegment(segmentId);
+        }
+    }
+}
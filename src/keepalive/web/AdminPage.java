@@ -24,6 +24,11 @@ import java.net.MalformedURLException;
 import java.net.URLDecoder;
 
 import keepalive.Plugin;
+import keepalive.service.net.BlockBufferPool;
+import keepalive.service.net.ConcurrencyController;
+import keepalive.service.net.JobExecutor;
+import keepalive.service.reinserter.HealExecutor;
+import keepalive.service.reinserter.ReinserterScheduler;
 import pluginbase.PageBase;
 
 public class AdminPage extends PageBase {
@@ -50,13 +55,19 @@ public class AdminPage extends PageBase {
 
                 // stop reinserter
                 if (getParam("stop") != null) {
-                    plugin.stopReinserter();
+                    ReinserterScheduler scheduler = plugin.getScheduler();
+                    if (scheduler != null) {
+                        scheduler.stopSite(getIntParam("stop"));
+                    }
                 }
 
                 // modify power
                 if (getParam("modify_power") != null) {
                     setIntPropByParam("power", 1);
+                    setIntPropByParam("power_min", 1);
+                    setIntProp("adaptive_power", getParam("adaptive_power") != null ? 1 : 0);
                     saveProp();
+                    plugin.configureJobExecutor();
                 }
 
                 // modify splitfile tolerance
@@ -71,12 +82,38 @@ public class AdminPage extends PageBase {
                     saveProp();
                 }
 
+                // modify healing
+                if (getParam("modify_heal_margin") != null) {
+                    setIntPropByParam("heal_margin", 0);
+                    setIntProp("early_decode", getParam("early_decode") != null ? 1 : 0);
+                    saveProp();
+                }
+
+                // modify freshness of verified blocks
+                if (getParam("block_freshness") != null) {
+                    setIntPropByParam("block_freshness", 0);
+                    saveProp();
+                }
+
+                // modify memory budget for block data
+                if (getParam("memory_budget") != null) {
+                    setIntPropByParam("memory_budget", 0);
+                    saveProp();
+                    plugin.getBlockBufferPool().setBudget(plugin.getBlockBufferBudget());
+                }
+
                 // modify timeslot to heal single url
                 if (getParam("single_url_timeslot") != null) {
                     setIntPropByParam("single_url_timeslot", 1);
                     saveProp();
                 }
 
+                // modify number of sites reinserted in parallel
+                if (getParam("parallel_sites") != null) {
+                    setIntPropByParam("parallel_sites", 0);
+                    saveProp();
+                }
+
                 // modify log level
                 if (getParam("modify_loglevel") != null || getParam("show_log") != null) {
                     setIntPropByParam("loglevel", 0);
@@ -110,6 +147,7 @@ public class AdminPage extends PageBase {
             sitesBox(ids);
             logBox();
             configurationBox();
+            jobsBox();
             historyBox(ids);
 
             // info box
@@ -152,9 +190,95 @@ public class AdminPage extends PageBase {
         html = new StringBuilder(html.toString().replaceAll("#3", getProp("splitfile_tolerance")));
         html = new StringBuilder(html.toString().replaceAll("#4", getProp("splitfile_test_size")));
         html = new StringBuilder(html.toString().replaceAll("#5", getProp("single_url_timeslot")));
+        html = new StringBuilder(html.toString().replaceAll("#6", getProp("parallel_sites")));
+        html = new StringBuilder(html.toString().replaceAll("#7", getProp("power_min")));
+        html = new StringBuilder(html.toString().replaceAll("#8",
+                getIntProp("adaptive_power") == 1 ? "checked" : ""));
+        html = new StringBuilder(html.toString().replaceAll("#9", getProp("block_freshness")));
+        html = new StringBuilder(html.toString().replaceAll("#0", getProp("memory_budget")));
+        html = new StringBuilder(html.toString().replaceAll("#H", getProp("heal_margin")));
+        html = new StringBuilder(html.toString().replaceAll("#E",
+                getIntProp("early_decode") == 1 ? "checked" : ""));
         addBox("Configuration", html.toString(), "page-kp-config");
     }
 
+    private void jobsBox() {
+        JobExecutor executor = plugin.getJobExecutor();
+        StringBuilder html = new StringBuilder("<table><tr style=\"text-align:center;\">")
+                .append("<td>jobs</td><td>threads</td><td>active</td><td>waiting</td>")
+                .append("<td>completed</td><td>rejected</td></tr>");
+
+        for (JobExecutor.Lane lane : JobExecutor.Lane.values()) {
+            html.append("<tr><td>")
+                    .append(lane.name().toLowerCase())
+                    .append("</td><td align=\"center\">")
+                    .append(executor.getPower(lane))
+                    .append("</td><td align=\"center\">")
+                    .append(executor.getActiveCount(lane))
+                    .append("</td><td align=\"center\">")
+                    .append(executor.getQueueDepth(lane))
+                    .append("</td><td align=\"center\">")
+                    .append(executor.getCompletedCount(lane))
+                    .append("</td><td align=\"center\">")
+                    .append(executor.getRejectedCount(lane))
+                    .append("</td></tr>");
+        }
+        HealExecutor healExecutor = plugin.getHealExecutor();
+        html.append("<tr><td>heal</td><td align=\"center\">")
+                .append(healExecutor.getParallelism())
+                .append("</td><td align=\"center\">")
+                .append(healExecutor.getActiveCount())
+                .append("</td><td align=\"center\">")
+                .append(healExecutor.getQueuedCount())
+                .append("</td><td align=\"center\">")
+                .append(healExecutor.getCompletedCount())
+                .append("</td><td align=\"center\">-</td></tr>");
+        html.append("</table>");
+
+        html.append("<br>healing: ")
+                .append(healExecutor.getAverageHealTime())
+                .append(" ms per segment, queued ")
+                .append(healExecutor.getAverageQueueTime())
+                .append(" ms");
+
+        BlockBufferPool bufferPool = plugin.getBlockBufferPool();
+        html.append("<br>block buffers: ")
+                .append(bufferPool.getInUseCount())
+                .append("/")
+                .append(bufferPool.getBudget())
+                .append(" in use, ")
+                .append(bufferPool.getPooledCount())
+                .append(" free, ")
+                .append(bufferPool.getAllocatedCount())
+                .append(" allocated, ")
+                .append(bufferPool.getReusedCount())
+                .append(" reused, ")
+                .append(bufferPool.getOverBudgetCount())
+                .append(" over budget<br>spilled to disk: ")
+                .append(bufferPool.getSpilledCount())
+                .append(" (")
+                .append(bufferPool.getSpillWrites())
+                .append(" written, ")
+                .append(bufferPool.getSpillReads())
+                .append(" read back)<br>");
+
+        // changes of the adaptive power
+        for (JobExecutor.Lane lane : JobExecutor.Lane.values()) {
+            ConcurrencyController controller = executor.getController(lane);
+            if (controller.isAdaptive() && !controller.getDecisions().isEmpty()) {
+                html.append("<br>")
+                        .append(lane.name().toLowerCase())
+                        .append(" power:<br><small>");
+                for (String decision : controller.getDecisions()) {
+                    html.append(decision).append("<br>");
+                }
+                html.append("</small>");
+            }
+        }
+
+        addBox("Jobs", html.toString(), "page-kp-jobs");
+    }
+
     private void logBox() throws Exception {
         if (getParam("master_log") != null || getParam("log") != null) {
             String log;
@@ -192,15 +316,16 @@ public class AdminPage extends PageBase {
 
         for (int id : ids) {
             String uri = getProp("uri_" + id);
-            int success = plugin.getSuccessValues(id)[0];
-            int failure = plugin.getSuccessValues(id)[1];
+            int[] successValues = plugin.getSuccessValues(id);
+            int success = successValues[0];
+            int failure = successValues[1];
 
             int persistence = 0;
             if (success > 0) {
                 persistence = (int) ((double) success / (success + failure) * 100);
             }
 
-            int availableSegments = plugin.getSuccessValues(id)[2];
+            int availableSegments = successValues[2];
             int finishedSegmentsCount = getIntProp("segment_" + id) + 1;
 
             int segmentsAvailability = 0;
@@ -232,7 +357,7 @@ public class AdminPage extends PageBase {
                     .append(formPassword)
                     .append("'>log</a></td>");
 
-            if (id == getIntProp("active")) {
+            if (plugin.isReinserterActive(id)) {
                 html.append("<td><a href='?stop=")
                         .append(id)
                         .append("&formPassword=")
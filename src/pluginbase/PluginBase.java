@@ -410,6 +410,11 @@ abstract public class PluginBase implements FredPlugin, FredPluginThreadless,
 
 	// methods to set and get persistent properties
 	public synchronized void saveProp() {
+		storeProp();
+	}
+
+	// writes the properties, returns false if they could not be written
+	protected synchronized boolean storeProp() {
 		try {
 
 			if (prop != null) {
@@ -434,11 +439,15 @@ abstract public class PluginBase implements FredPlugin, FredPluginThreadless,
 					file.renameTo(oldFile);
 				}
 
-				newFile.renameTo(file);
+				if (!newFile.renameTo(file)) {
+					throw new IOException("properties cannot be renamed: " + newFile.getName());
+				}
 			}
+			return true;
 
 		} catch (IOException e) {
 			log("PluginBase.saveProp(): " + e.getMessage());
+			return false;
 		}
 	}
 
@@ -0,0 +1,113 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConcurrencyControllerTest {
+
+    private JobExecutor executor;
+    private ConcurrencyController controller;
+
+    @Before
+    public void setUp() {
+        executor = new JobExecutor(4);
+        executor.configure(true, 1, 8);
+        controller = executor.getController(JobExecutor.Lane.FETCH);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    // a window has at least 10 jobs
+    private void finishWindow(long latency, int overloaded) {
+        for (int i = 0; i < 10; i++) {
+            controller.onJobFinished(latency, i < overloaded);
+        }
+    }
+
+    @Test
+    public void backsOffOnOverload() {
+        finishWindow(100, 5);
+        assertEquals(3, controller.getLimit());
+        assertEquals(1, controller.getDecisions().size());
+    }
+
+    @Test
+    public void backsOffOnRisingLatency() {
+        finishWindow(100, 0);
+        assertEquals(4, controller.getLimit());
+        finishWindow(300, 0);
+        assertEquals(3, controller.getLimit());
+    }
+
+    @Test
+    public void staysWithoutWaitingJobs() {
+        finishWindow(100, 0);
+        finishWindow(100, 0);
+        assertEquals(4, controller.getLimit());
+    }
+
+    @Test
+    public void growsWhileJobsWaitAndLatencyIsHealthy() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        Callable<Void> job = new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                release.await();
+                return null;
+            }
+        };
+        try {
+            for (int i = 0; i < 6; i++) {
+                executor.submit(JobExecutor.Lane.FETCH, job);
+            }
+            finishWindow(100, 0);
+            finishWindow(110, 0);
+            assertEquals(6, controller.getLimit());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void neverBelowMinimum() {
+        for (int i = 0; i < 10; i++) {
+            finishWindow(100, 10);
+        }
+        assertEquals(1, controller.getLimit());
+    }
+
+    @Test
+    public void fixedLimitWhenNotAdaptive() {
+        executor.configure(false, 1, 8);
+        assertEquals(8, controller.getLimit());
+        finishWindow(100, 10);
+        assertEquals(8, controller.getLimit());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AvailabilityEstimatorTest {
+
+    @Test
+    public void siteEstimateWithoutResults() {
+        assertEquals(0.5, new AvailabilityEstimator(-1).getSiteEstimate(), 1e-9);
+        assertEquals(0.9, new AvailabilityEstimator(0.9).getSiteEstimate(), 1e-9);
+    }
+
+    @Test
+    public void siteEstimateFollowsResults() {
+        AvailabilityEstimator estimator = new AvailabilityEstimator(0.9);
+        for (int i = 0; i < 10; i++) {
+            estimator.add(1, false);
+        }
+        assertEquals(18.0 / 30, estimator.getSiteEstimate(), 1e-9);
+    }
+
+    @Test
+    public void fileEstimateUsesSiteAsPrior() {
+        AvailabilityEstimator estimator = new AvailabilityEstimator(0.9);
+        for (int i = 0; i < 10; i++) {
+            estimator.add(1, false);
+        }
+        assertEquals(estimator.getSiteEstimate(), estimator.getEstimate(2), 1e-9);
+        assertTrue(estimator.getEstimate(1) < estimator.getEstimate(2));
+    }
+
+    @Test
+    public void healthyFileIsProbablyAvailable() {
+        AvailabilityEstimator estimator = new AvailabilityEstimator(0.95);
+        for (int i = 0; i < 20; i++) {
+            estimator.add(1, true);
+        }
+        assertTrue(estimator.getProbabilityAvailable(1, 0.5) > 0.99);
+        assertTrue(estimator.getConfidence(1, 0.5) > 0.99);
+        assertTrue(estimator.getPriorLogOdds(1, 0.5) > 0);
+    }
+
+    @Test
+    public void failingFileIsProbablyNotAvailable() {
+        AvailabilityEstimator estimator = new AvailabilityEstimator(0.2);
+        for (int i = 0; i < 20; i++) {
+            estimator.add(1, false);
+        }
+        assertTrue(estimator.getProbabilityAvailable(1, 0.5) < 0.01);
+        assertTrue(estimator.getConfidence(1, 0.5) > 0.99);
+        assertTrue(estimator.getPriorLogOdds(1, 0.5) < 0);
+    }
+}
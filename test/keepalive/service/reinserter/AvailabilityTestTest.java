@@ -0,0 +1,79 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AvailabilityTestTest {
+
+    @Test
+    public void decidesAvailableEarlyOnSuccesses() {
+        AvailabilityTest test = new AvailabilityTest(0.5, 20);
+        while (test.getDecision() == AvailabilityTest.Decision.CONTINUE) {
+            test.add(true);
+        }
+        assertEquals(AvailabilityTest.Decision.AVAILABLE, test.getDecision());
+        assertTrue(test.getSamples() < test.getMaxSamples());
+    }
+
+    @Test
+    public void decidesNotAvailableEarlyOnFailures() {
+        AvailabilityTest test = new AvailabilityTest(0.5, 20);
+        while (test.getDecision() == AvailabilityTest.Decision.CONTINUE) {
+            test.add(false);
+        }
+        assertEquals(AvailabilityTest.Decision.NOT_AVAILABLE, test.getDecision());
+        assertTrue(test.getSamples() < test.getMaxSamples());
+    }
+
+    @Test
+    public void availabilityDecidesAtMaxSamples() {
+        AvailabilityTest test = new AvailabilityTest(0.5, 4);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(AvailabilityTest.Decision.CONTINUE, test.getDecision());
+            test.add(i % 2 == 0);
+        }
+        assertEquals(0.5, test.getAvailability(), 1e-9);
+        assertEquals(AvailabilityTest.Decision.AVAILABLE, test.getDecision());
+    }
+
+    @Test
+    public void priorNeverDecidesWithoutSample() {
+        AvailabilityTest test = new AvailabilityTest(0.5, 20, 100);
+        assertEquals(AvailabilityTest.Decision.CONTINUE, test.getDecision());
+    }
+
+    @Test
+    public void priorShortensTheTest() {
+        AvailabilityTest withoutPrior = new AvailabilityTest(0.5, 20);
+        AvailabilityTest withPrior = new AvailabilityTest(0.5, 20, 100);
+        withoutPrior.add(true);
+        withPrior.add(true);
+        assertEquals(AvailabilityTest.Decision.CONTINUE, withoutPrior.getDecision());
+        assertEquals(AvailabilityTest.Decision.AVAILABLE, withPrior.getDecision());
+    }
+
+    @Test
+    public void noToleranceIsAlwaysAvailable() {
+        assertEquals(AvailabilityTest.Decision.AVAILABLE, new AvailabilityTest(0, 20).getDecision());
+    }
+}
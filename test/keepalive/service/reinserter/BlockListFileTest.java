@@ -0,0 +1,126 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import keepalive.model.Block;
+import keepalive.model.BlockHistory;
+import keepalive.model.BlockTable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlockListFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] key(int id) {
+        byte[] key = new byte[BlockTable.KEY_LENGTH];
+        Arrays.fill(key, (byte) id);
+        return key;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        BlockTable blocks = new BlockTable();
+        // added out of order, the file is ordered by segment and block id
+        blocks.add(key(4), 0, null, 1, 1, false, 7);
+        blocks.add(key(1), 0, "index.html", 0, 0, true, 3);
+        blocks.add(key(3), 0, null, 1, 0, true, 7);
+        blocks.add(key(2), 0, null, 0, 1, false, 3);
+        blocks.add(key(5), 0, null, 1, 2, false, 7);
+
+        File file = folder.newFile("keys.bin");
+        BlockListFile.write(file, blocks);
+
+        try (BlockListFile blockList = new BlockListFile(file)) {
+            assertEquals(1, blockList.getMaxSegmentId());
+            assertEquals(5, blockList.getBlocksCount());
+            assertEquals(2, blockList.getSegmentSize(0));
+            assertEquals(3, blockList.getSegmentSize(1));
+            assertEquals(0, blockList.getSegmentSize(2));
+            assertEquals(1, blockList.getDataBlocksCount(0));
+            assertEquals(1, blockList.getDataBlocksCount(1));
+
+            Block[] segment = blockList.readSegment(1);
+            assertEquals(3, segment.length);
+            for (int i = 0; i < segment.length; i++) {
+                assertEquals(i, segment[i].getId());
+                assertEquals(1, segment[i].getSegmentId());
+                assertEquals(7, segment[i].getFileId());
+                assertEquals(i == 0, segment[i].isDataBlock());
+                assertArrayEquals(Arrays.copyOf(key(3 + i), BlockTable.ROUTING_KEY_LENGTH),
+                        segment[i].getRoutingKey());
+            }
+
+            segment = blockList.readSegment(0);
+            assertEquals("index.html", segment[0].getUri().getDocName());
+            assertNull(segment[1].getUri().getDocName());
+            assertTrue(segment[0].isDataBlock());
+            assertFalse(segment[1].isDataBlock());
+
+            byte[] packedKey = new byte[BlockTable.KEY_LENGTH];
+            assertEquals(2, blockList.readKey(1, 2, packedKey));
+            assertArrayEquals(key(5), packedKey);
+
+            List<String> routingKeys = new ArrayList<>(blockList.getRoutingKeys());
+            assertEquals(5, routingKeys.size());
+            for (int i = 0; i < 5; i++) {
+                assertEquals(BlockHistory.getRoutingKey(Arrays.copyOf(key(i + 1), BlockTable.ROUTING_KEY_LENGTH)),
+                        routingKeys.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void replacesPreviousList() throws IOException {
+        File file = folder.newFile("keys.bin");
+        BlockTable blocks = new BlockTable();
+        blocks.add(key(1), 0, null, 0, 0, true, 0);
+        BlockListFile.write(file, blocks);
+
+        blocks.add(key(2), 0, null, 1, 0, true, 1);
+        BlockListFile.write(file, blocks);
+
+        try (BlockListFile blockList = new BlockListFile(file)) {
+            assertEquals(2, blockList.getBlocksCount());
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("keys.bin");
+        Files.write(file.toPath(), new byte[64]);
+        new BlockListFile(file).close();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import keepalive.model.BlockIndex;
+import keepalive.model.BlockTable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class EditionDiffTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] key(int id) {
+        byte[] key = new byte[BlockTable.KEY_LENGTH];
+        key[0] = (byte) id;
+        key[BlockTable.KEY_LENGTH - 1] = (byte) (id >> 8);
+        return key;
+    }
+
+    // the first two blocks are data blocks
+    private static void addSegment(BlockTable blocks, int segmentId, int... keys) {
+        for (int i = 0; i < keys.length; i++) {
+            blocks.add(key(keys[i]), 0, null, segmentId, i, i < 2, segmentId);
+        }
+    }
+
+    private EditionDiff createDiff(BlockTable previousBlocks, BlockTable blocks, int previousLastSegment)
+            throws IOException {
+        File file = folder.newFile("keys.bin");
+        BlockListFile.write(file, previousBlocks);
+        try (BlockListFile previousList = new BlockListFile(file)) {
+            return new EditionDiff(previousList, new BlockIndex(blocks), previousLastSegment);
+        }
+    }
+
+    @Test
+    public void findsMovedAndUnchangedSegments() throws IOException {
+        BlockTable previousBlocks = new BlockTable();
+        addSegment(previousBlocks, 0, 0, 1, 2, 3);
+        addSegment(previousBlocks, 1, 10, 11, 12, 13);
+        addSegment(previousBlocks, 2, 20, 21, 22, 23);
+
+        BlockTable blocks = new BlockTable();
+        addSegment(blocks, 0, 20, 21, 22, 23); // moved
+        addSegment(blocks, 1, 0, 1, 2, 3); // unchanged
+        addSegment(blocks, 2, 10, 11, 12, 99); // changed
+        addSegment(blocks, 3, 30, 31, 32, 33); // new
+
+        EditionDiff diff = createDiff(previousBlocks, blocks, 1);
+        assertEquals(2, diff.getUnchangedCount());
+        assertEquals(2, diff.getPreviousSegmentId(0));
+        assertEquals(0, diff.getPreviousSegmentId(1));
+        assertEquals(-1, diff.getPreviousSegmentId(2));
+        assertEquals(-1, diff.getPreviousSegmentId(3));
+        assertEquals(-1, diff.getPreviousSegmentId(4));
+
+        // only segments finished in the previous pass count as verified
+        assertEquals(-1, diff.getVerifiedSegmentId(0));
+        assertEquals(0, diff.getVerifiedSegmentId(1));
+    }
+
+    @Test
+    public void reorderedBlocksChangeTheSegment() throws IOException {
+        BlockTable previousBlocks = new BlockTable();
+        addSegment(previousBlocks, 0, 0, 1, 2, 3);
+
+        BlockTable blocks = new BlockTable();
+        addSegment(blocks, 0, 1, 0, 2, 3);
+
+        assertEquals(0, createDiff(previousBlocks, blocks, 0).getUnchangedCount());
+    }
+
+    @Test
+    public void shrunkSegmentIsChanged() throws IOException {
+        BlockTable previousBlocks = new BlockTable();
+        addSegment(previousBlocks, 0, 0, 1, 2);
+
+        BlockTable blocks = new BlockTable();
+        addSegment(blocks, 0, 0, 1, 2, 3);
+
+        assertEquals(0, createDiff(previousBlocks, blocks, 0).getUnchangedCount());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import keepalive.model.Block;
+import keepalive.model.BlockHistory;
+import keepalive.model.BlockTable;
+import keepalive.model.Segment;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class HealPolicyTest {
+
+    // 5 data and 5 check blocks, all fetched without success
+    private static Segment createSegment(int... failures) {
+        Block[] blocks = new Block[10];
+        for (int i = 0; i < blocks.length; i++) {
+            byte[] key = new byte[BlockTable.KEY_LENGTH];
+            key[0] = (byte) i;
+            blocks[i] = new Block(key, null, 0, i, i < 5, 0);
+            blocks[i].setFetchDone(true);
+            blocks[i].setHistory(new BlockHistory(String.valueOf(i), 0, 0, i < failures.length ? failures[i] : 0));
+        }
+        return new Segment(null, 0, blocks, 5);
+    }
+
+    private static List<Integer> getIds(List<Block> blocks) {
+        List<Integer> ids = new ArrayList<>();
+        for (Block block : blocks) {
+            ids.add(block.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void targetIsMarginAboveTolerance() {
+        assertEquals(8, new HealPolicy(0.7, 0.1).getTarget(createSegment()));
+    }
+
+    @Test
+    public void targetIsAtLeastTheFecThreshold() {
+        assertEquals(6, new HealPolicy(0.2, 0.1).getTarget(createSegment()));
+    }
+
+    @Test
+    public void targetIsAtMostAllBlocks() {
+        assertEquals(10, new HealPolicy(0.95, 0.2).getTarget(createSegment()));
+    }
+
+    @Test
+    public void selectsDataBlocksFirstThenMostFailing() {
+        Segment segment = createSegment(0, 0, 0, 0, 0, 0, 0, 0, 5, 2);
+        for (int id : new int[]{0, 1, 5, 6}) {
+            segment.getBlock(id).setFetchSuccessful(true);
+        }
+
+        List<Block> selected = new HealPolicy(0.7, 0.1).select(segment);
+        assertEquals(Arrays.asList(2, 3, 4, 8), getIds(selected));
+    }
+
+    @Test
+    public void nothingSelectedAboveTarget() {
+        Segment segment = createSegment();
+        for (int i = 0; i < 8; i++) {
+            segment.getBlock(i).setFetchSuccessful(true);
+        }
+        assertEquals(0, new HealPolicy(0.7, 0.1).select(segment).size());
+    }
+
+    @Test
+    public void blocksInProgressOnlyAfterMissingOnes() {
+        Segment segment = createSegment();
+        for (int i = 0; i < 4; i++) {
+            segment.getBlock(i).setFetchSuccessful(true);
+        }
+        segment.getBlock(4).setFetchDone(false);
+        segment.getBlock(5).setFetchDone(false);
+        segment.getBlock(6).setFetchDone(false);
+        segment.getBlock(7).setHealable(false);
+
+        // 4 available, target 8: missing 8 and 9, then blocks in progress
+        List<Block> selected = new HealPolicy(0.7, 0.1).select(segment);
+        assertEquals(Arrays.asList(8, 9, 4, 5), getIds(selected));
+    }
+}
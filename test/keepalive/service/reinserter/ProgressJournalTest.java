@@ -0,0 +1,174 @@
+/*
+ * Keep Alive Plugin
+ * Copyright (C) 2012 Jeriadoc
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package keepalive.service.reinserter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressJournalTest {
+
+    private static final int RECORD_SIZE = 9;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File createJournal() throws IOException {
+        File file = new File(folder.getRoot(), "journal.bin");
+        ProgressJournal journal = new ProgressJournal(file);
+        journal.reset();
+        journal.append(ProgressJournal.FETCH_OK, 0, 1);
+        journal.append(ProgressJournal.FETCH_FAILED, 0, 2);
+        journal.append(ProgressJournal.INSERT_OK, 0, 2);
+        journal.append(ProgressJournal.SEGMENT_DONE, 0, -1);
+        journal.append(ProgressJournal.FETCH_OK, 1, 0);
+        journal.close();
+        return file;
+    }
+
+    // appends a record cut to the given length
+    private static void appendBytes(File file, int type, int segmentId, int blockId, int length)
+            throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+            out.writeByte(type);
+            out.writeInt(segmentId);
+            out.writeInt(blockId);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - RECORD_SIZE + length);
+        }
+    }
+
+    @Test
+    public void replaysOutcomes() throws IOException {
+        ProgressJournal journal = new ProgressJournal(createJournal());
+        journal.replay();
+        try {
+            assertTrue(journal.isPassStarted());
+            assertEquals(Boolean.TRUE, journal.getFetchResult(0, 1));
+            assertEquals(Boolean.FALSE, journal.getFetchResult(0, 2));
+            assertNull(journal.getFetchResult(0, 3));
+            assertTrue(journal.isInserted(0, 2));
+            assertFalse(journal.isInserted(0, 1));
+            assertTrue(journal.isSegmentDone(0));
+            assertFalse(journal.isSegmentDone(1));
+            assertEquals(Boolean.TRUE, journal.getFetchResult(1, 0));
+            assertNull(journal.getFetchResult(2, 0));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void laterRecordsOverrideEarlierOnes() throws IOException {
+        File file = createJournal();
+        ProgressJournal journal = new ProgressJournal(file);
+        journal.replay();
+        journal.append(ProgressJournal.FETCH_OK, 0, 2);
+        journal.append(ProgressJournal.INSERT_FAILED, 0, 2);
+        journal.close();
+
+        journal = new ProgressJournal(file);
+        journal.replay();
+        try {
+            assertEquals(Boolean.TRUE, journal.getFetchResult(0, 2));
+            assertFalse(journal.isInserted(0, 2));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void dropsTornRecord() throws IOException {
+        File file = createJournal();
+        long length = file.length();
+        appendBytes(file, ProgressJournal.FETCH_OK, 1, 1, 5);
+
+        ProgressJournal journal = new ProgressJournal(file);
+        journal.replay();
+        try {
+            assertNull(journal.getFetchResult(1, 1));
+            assertEquals(Boolean.TRUE, journal.getFetchResult(1, 0));
+        } finally {
+            journal.close();
+        }
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void stopsAtCorruptRecord() throws IOException {
+        File file = createJournal();
+        long length = file.length();
+        appendBytes(file, ProgressJournal.FETCH_OK, 1, -1, RECORD_SIZE);
+        appendBytes(file, ProgressJournal.FETCH_OK, 1, 2, RECORD_SIZE);
+        appendBytes(file, 42, 1, 3, RECORD_SIZE);
+
+        ProgressJournal journal = new ProgressJournal(file);
+        journal.replay();
+        try {
+            assertTrue(journal.isPassStarted());
+            assertEquals(Boolean.TRUE, journal.getFetchResult(1, 0));
+            // records after the corrupt one are not trusted
+            assertNull(journal.getFetchResult(1, 2));
+        } finally {
+            journal.close();
+        }
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void resetStartsNewPass() throws IOException {
+        File file = createJournal();
+        ProgressJournal journal = new ProgressJournal(file);
+        journal.reset();
+        journal.close();
+
+        journal = new ProgressJournal(file);
+        journal.replay();
+        try {
+            assertTrue(journal.isPassStarted());
+            assertNull(journal.getFetchResult(0, 1));
+            assertFalse(journal.isSegmentDone(0));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void missingJournalHasNoPass() throws IOException {
+        ProgressJournal journal = new ProgressJournal(new File(folder.getRoot(), "none.bin"));
+        journal.replay();
+        try {
+            assertFalse(journal.isPassStarted());
+        } finally {
+            journal.close();
+        }
+    }
+}